@@ -0,0 +1,21 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.RedisBloomFilter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+@Configuration
+public class BloomFilterConfig {
+
+    /**
+     * 商铺id的布隆过滤器，预计元素个数和误判率决定占用的内存
+     */
+    @Bean
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                            @Value("${hmdp.bloom.shop.expected-insertions:1000000}") long expectedInsertions,
+                                            @Value("${hmdp.bloom.shop.fpp:0.01}") double fpp) {
+        return new RedisBloomFilter(stringRedisTemplate, "shop", expectedInsertions, fpp);
+    }
+}
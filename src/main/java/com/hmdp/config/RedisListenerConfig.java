@@ -0,0 +1,47 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.LocalCache;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.SingleFlight;
+import com.hmdp.utils.SoldOutFlags;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       LocalCache localCache,
+                                                                       RedisBloomFilter shopBloomFilter,
+                                                                       SingleFlight singleFlight,
+                                                                       ShopGeoIndex shopGeoIndex,
+                                                                       ShopNameIndex shopNameIndex,
+                                                                       SoldOutFlags soldOutFlags,
+                                                                       OrderStatusStore orderStatusStore) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //本地缓存失效广播
+        container.addMessageListener(localCache, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        //布隆过滤器新增元素广播
+        container.addMessageListener(shopBloomFilter, new ChannelTopic(shopBloomFilter.getChannel()));
+        //缓存重建完成通知
+        container.addMessageListener(singleFlight, new ChannelTopic(RedisConstants.CACHE_REBUILT_CHANNEL));
+        //商铺位置变化，同步空间索引
+        container.addMessageListener(shopGeoIndex, new ChannelTopic(RedisConstants.SHOP_GEO_SYNC_CHANNEL));
+        //商铺新增、修改和删除，同步名称索引
+        container.addMessageListener(shopNameIndex, new ChannelTopic(RedisConstants.SHOP_NAME_SYNC_CHANNEL));
+        //秒杀券售罄和补充库存
+        container.addMessageListener(soldOutFlags, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        //秒杀订单处理完成，唤醒长轮询
+        container.addMessageListener(orderStatusStore, new ChannelTopic(RedisConstants.SECKILL_STATUS_CHANNEL));
+        return container;
+    }
+}
@@ -0,0 +1,200 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.CacheClientUtil;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.SeckillActivator;
+import com.hmdp.utils.SeckillBatcher;
+import com.hmdp.utils.ShopCacheWarmer;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopNameSuggester;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 运维接口，查看缓存等内部组件的运行指标
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private CacheClientUtil cacheClientUtil;
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private ShopNameIndex shopNameIndex;
+    @Resource
+    private ShopNameSuggester shopNameSuggester;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillActivator seckillActivator;
+    @Resource
+    private SeckillBatcher seckillBatcher;
+
+    /**
+     * 查询每一级缓存的命中统计和缓存删除的延迟
+     * @return 命中、未命中次数等
+     */
+    @GetMapping("/cache/stats")
+    public Result cacheStats() {
+        Map<String, Long> stats = new LinkedHashMap<>(cacheClientUtil.getStats());
+        stats.putAll(cacheInvalidator.getStats());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查询商铺布隆过滤器的参数和拦截次数
+     * @return 位图大小、hash函数个数、占用内存等
+     */
+    @GetMapping("/bloom/shop")
+    public Result shopBloomStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", shopBloomFilter.isReady());
+        stats.put("fpp", shopBloomFilter.getFpp());
+        stats.put("bitSize", shopBloomFilter.getBitSize());
+        stats.put("hashFunctions", shopBloomFilter.getHashFunctions());
+        stats.put("memoryBytes", shopBloomFilter.getMemoryBytes());
+        stats.put("rejected", shopBloomFilter.getRejectCount());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查询启动预热的进度
+     * @return 是否完成、已加载行数、每秒行数等
+     */
+    @GetMapping("/warmup")
+    public Result warmUpStats() {
+        return Result.ok(shopCacheWarmer.getStats());
+    }
+
+    /**
+     * 查询当前节点探测到的热点key
+     * @return 热点key及窗口内的估计访问次数，以及探测器的统计
+     */
+    @GetMapping("/hotkeys")
+    public Result hotKeys() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hotKeys", hotKeyDetector.getHotKeys());
+        result.put("stats", hotKeyDetector.getStats());
+        return Result.ok(result);
+    }
+
+    /**
+     * 查询商铺名称索引、名称补全的大小和查询耗时
+     * @return 文档数、倒排表条目数、最近查询的p50和p99(微秒)
+     */
+    @GetMapping("/search/stats")
+    public Result searchStats() {
+        Map<String, Long> stats = new LinkedHashMap<>(shopNameIndex.getStats());
+        stats.putAll(shopNameSuggester.getStats());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 全量重建附近商铺的GEO集合，重建期间查询仍然使用旧集合
+     * @return 商铺数量、耗时、每秒行数
+     */
+    @PostMapping("/geo/rebuild")
+    public Result rebuildShopGeo() {
+        return Result.ok(shopService.rebuildShopGeo());
+    }
+
+    /**
+     * 修改tb_shop_type后调用，所有节点重新加载商铺类型
+     * @return 新的版本号
+     */
+    @PostMapping("/shop-type/refresh")
+    public Result refreshShopType() {
+        return Result.ok(shopTypeService.publishChange());
+    }
+
+    /**
+     * 查询秒杀订单消费者的处理速度
+     * @return 消费的消息数、批次数、每秒创建的订单数等
+     */
+    @GetMapping("/seckill/stats")
+    public Result seckillStats() {
+        return Result.ok(voucherOrderService.getStats());
+    }
+
+    /**
+     * 立即下线秒杀券，归档后删除Redis中的库存和购买记录，也用于清理没有定时下线的旧秒杀券
+     * @param id 优惠券id
+     * @return 剩余库存、购买人数和回收的内存
+     */
+    @PostMapping("/seckill/{id}/retire")
+    public Result retireSeckill(@PathVariable("id") Long id) {
+        return Result.ok(seckillActivator.retire(id));
+    }
+
+    /**
+     * 查询死信队列中多次处理失败的订单消息
+     * @param count 最多返回的数量
+     */
+    @GetMapping("/seckill/dlq")
+    public Result listSeckillDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return Result.ok(voucherOrderService.listDeadLetters(count));
+    }
+
+    /**
+     * 修复问题后把死信消息重新写入订单队列，继续使用原来扣减的库存和购买记录
+     * @param id 死信队列中的消息id
+     */
+    @PostMapping("/seckill/dlq/{id}/replay")
+    public Result replaySeckillDeadLetter(@PathVariable("id") String id) {
+        return voucherOrderService.replayDeadLetter(id);
+    }
+
+    /**
+     * 丢弃死信消息，归还Redis中的一个库存并删除用户的购买记录，用户可以重新下单
+     * 秒杀券已经下线时只删除购买记录，不再归还库存
+     * @param id 死信队列中的消息id
+     */
+    @DeleteMapping("/seckill/dlq/{id}")
+    public Result discardSeckillDeadLetter(@PathVariable("id") String id) {
+        return voucherOrderService.discardDeadLetter(id);
+    }
+
+    /**
+     * 修改秒杀请求的批次窗口并重新统计，压测时依次设置不同的窗口，对比/seckill/stats中的吞吐量和等待时间
+     * @param micros 微秒，0表示关闭批处理
+     */
+    @PutMapping("/seckill/batch-window")
+    public Result setSeckillBatchWindow(@RequestParam("micros") Long micros) {
+        if (micros < 0) {
+            return Result.fail("批次窗口不能小于0");
+        }
+        seckillBatcher.setWindowMicros(micros);
+        return Result.ok();
+    }
+}
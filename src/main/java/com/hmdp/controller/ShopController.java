@@ -1,15 +1,13 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -37,6 +35,17 @@ public class ShopController {
         return shopService.queryById(id);
     }
 
+    /**
+     * 根据id批量查询商铺信息
+     *
+     * @param ids 商铺id，多个id以','隔开
+     * @return 商铺列表，按id的顺序
+     */
+    @GetMapping("/batch")
+    public Result queryShopByIds(@RequestParam("ids") List<Long> ids) {
+        return shopService.queryShopByIds(ids);
+    }
+
     /**
      * 新增商铺信息
      *
@@ -45,10 +54,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，同时加入布隆过滤器
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -65,20 +72,54 @@ public class ShopController {
         return shopService.update(shop);
     }
 
+    /**
+     * 删除商铺
+     *
+     * @param id 商铺id
+     * @return 无
+     */
+    @DeleteMapping("/{id}")
+    public Result deleteShop(@PathVariable("id") Long id) {
+        return shopService.deleteShop(id);
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      *
      * @param typeId  商铺类型
      * @param current 页码
-     * @return 商铺列表
+     * @param radius 查询半径(米)，默认5000
+     * @param lastDistance 上一页最后一个商铺的距离，和lastId一起传入时忽略current，从游标之后查询
+     * @param lastId 上一页最后一个商铺的id
+     * @param session 第一页返回的查询会话令牌，之后的页从第一页的结果快照中截取
+     * @return 商铺列表，传入坐标时还包含查询会话令牌
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam(value = "x",required = false) Double x,
-            @RequestParam(value = "y",required = false) Double y) {
-        return shopService.queryShopByType(typeId,current,x,y);
+            @RequestParam(value = "y",required = false) Double y,
+            @RequestParam(value = "radius",required = false) Double radius,
+            @RequestParam(value = "lastDistance",required = false) Double lastDistance,
+            @RequestParam(value = "lastId",required = false) Long lastId,
+            @RequestParam(value = "session",required = false) String session) {
+        return shopService.queryShopByType(typeId,current,x,y,radius,lastDistance,lastId,session);
+    }
+
+    /**
+     * 商铺名称的输入补全
+     *
+     * @param prefix 已经输入的内容
+     * @param limit  返回的数量
+     * @return 商铺名称列表
+     */
+    @GetMapping("/suggest")
+    public Result suggest(
+            @RequestParam("prefix") String prefix,
+            @RequestParam(value = "limit", defaultValue = "10") Integer limit
+    ) {
+        return shopService.suggestShopName(prefix, limit);
     }
 
     /**
@@ -93,11 +134,6 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current);
     }
 }
@@ -0,0 +1,16 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class GeoPageResult {
+    private List<?> list;
+    //查询会话的令牌，翻页时传回，没有使用快照时为null
+    private String session;
+}
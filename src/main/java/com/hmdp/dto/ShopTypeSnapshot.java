@@ -0,0 +1,31 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 商铺类型的快照，创建后不再修改，刷新时整体替换
+ */
+@Getter
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+    /**
+     * 构建时Redis中的版本号
+     */
+    private final long version;
+    /**
+     * 按sort排序的商铺类型，不可修改
+     */
+    private final List<ShopType> types;
+    /**
+     * 预先序列化好的响应体
+     */
+    private final byte[] body;
+    /**
+     * 响应体的ETag
+     */
+    private final String etag;
+}
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -20,6 +23,13 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryById(Long id);
 
+    /**
+     * 新增商铺
+     * @param shop
+     * @return 商铺id
+     */
+    Result saveShop(Shop shop);
+
     /**
      * 更新
      * @param shop
@@ -27,5 +37,42 @@ public interface IShopService extends IService<Shop> {
      */
     Result update(Shop shop);
 
-    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+    /**
+     * 删除商铺
+     * @param id
+     * @return
+     */
+    Result deleteShop(Long id);
+
+    /**
+     * 全量重建附近商铺的GEO集合
+     * @return 商铺数量和耗时
+     */
+    Map<String, Object> rebuildShopGeo();
+
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y,
+                           Double radius, Double lastDistance, Long lastId, String session);
+
+    /**
+     * 根据id批量查询商铺，走缓存
+     * @param ids
+     * @return
+     */
+    Result queryShopByIds(List<Long> ids);
+
+    /**
+     * 根据名称关键词分页查询商铺
+     * @param name
+     * @param current
+     * @return
+     */
+    Result queryShopByName(String name, Integer current);
+
+    /**
+     * 商铺名称前缀补全
+     * @param prefix 已经输入的内容
+     * @param limit 返回的数量
+     * @return 按销量和评分排序的商铺名称
+     */
+    Result suggestShopName(String prefix, Integer limit);
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -15,8 +16,20 @@ import java.util.List;
  */
 public interface IShopTypeService extends IService<ShopType> {
     /**
-     * 利用Redis进行缓存
+     * 查询全部商铺类型，使用进程内的快照
      * @return
      */
     List<ShopType> listByCache();
+
+    /**
+     * 当前的商铺类型快照，包含序列化好的响应体和ETag
+     * @return
+     */
+    ShopTypeSnapshot getSnapshot();
+
+    /**
+     * 商铺类型修改后增加Redis中的版本号，通知所有节点重新加载
+     * @return 新的版本号
+     */
+    long publishChange();
 }
@@ -3,6 +3,10 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -21,4 +25,46 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单，一个事务完成
+     * @param voucherOrders
+     * @return 实际创建的订单，重复的和超出库存的不包含在内
+     */
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 查询秒杀订单的处理状态，只访问本地内存和Redis
+     * @param orderId 秒杀返回的订单id
+     * @param waitSeconds 订单还在排队时最多等待的秒数，0表示直接返回
+     * @return QUEUED、PERSISTED或FAILED
+     */
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long waitSeconds);
+
+    /**
+     * 查询死信队列中的订单消息
+     * @param count 最多返回的数量
+     * @return 消息id、原始字段、来源队列、投递次数和异常
+     */
+    List<Map<String, Object>> listDeadLetters(int count);
+
+    /**
+     * 把死信消息重新写入订单队列
+     * @param id 死信队列中的消息id
+     * @return
+     */
+    Result replayDeadLetter(String id);
+
+    /**
+     * 删除死信消息，不再处理，同时归还库存并删除购买记录
+     * @param id 死信队列中的消息id
+     * @return
+     */
+    Result discardDeadLetter(String id);
+
+    /**
+     * 订单消费者的统计
+     * @return 消费的消息数、创建的订单数、每秒创建的订单数等
+     */
+    Map<String, Long> getStats();
 }
@@ -17,4 +17,12 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 补充秒杀券的库存
+     * @param voucherId
+     * @param count 增加的数量
+     * @return
+     */
+    Result addSeckillStock(Long voucherId, Integer count);
 }
@@ -13,17 +13,22 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.LocalCache;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SingleFlight;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import jodd.util.StringUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -44,6 +49,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Autowired
     private IFollowService followService;
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+    @Autowired
+    private LocalCache localCache;
+    @Autowired
+    private SingleFlight singleFlight;
+    //热点blog的点赞集合在本地的副本存活时间
+    @Value("${hmdp.hotkey.local-ttl-millis:2000}")
+    private long hotLocalTtlMillis;
+    //点赞人数超过这个数量的blog不复制到本地
+    @Value("${hmdp.hotkey.max-local-members:100000}")
+    private long maxLocalMembers;
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -84,13 +101,48 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return;
         }
         Long userId = user.getId();
-        String key = RedisConstants.BLOG_LIKED_KEY+blog.getId();
+        blog.setIsLike(isLiked(blog.getId(), userId));
+    }
+
+    /**
+     * 判断用户是否点赞过，热点blog使用本地的点赞集合副本，不访问Redis
+     * @param blogId
+     * @param userId
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private boolean isLiked(Long blogId, Long userId){
+        String key = RedisConstants.BLOG_LIKED_KEY+blogId;
+        hotKeyDetector.record(key);
+        if (hotKeyDetector.isHot(key)){
+            Object cached = localCache.get(key);
+            if (cached == null){
+                //同一个key只让一个线程去复制
+                cached = singleFlight.execute(key, () -> loadLikedUsers(key));
+            }
+            if (cached instanceof Set){
+                return ((Set<String>) cached).contains(userId.toString());
+            }
+        }
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if (score!=null){
-            blog.setIsLike(true);
-        }else {
-            blog.setIsLike(false);
+        return score!=null;
+    }
+
+    /**
+     * 把热点blog的点赞集合复制到本地，集合过大时不复制
+     * @return 点赞用户id的集合，没有复制返回null
+     */
+    private Set<String> loadLikedUsers(String key){
+        Long size = stringRedisTemplate.opsForZSet().zCard(key);
+        if (size==null||size>maxLocalMembers){
+            //记录不复制，避免每次都去查询集合大小
+            localCache.put(key, Boolean.FALSE, hotLocalTtlMillis);
+            return null;
         }
+        Set<String> members = stringRedisTemplate.opsForZSet().range(key, 0, -1);
+        Set<String> likedUsers = members==null ? new HashSet<>() : new HashSet<>(members);
+        localCache.put(key, likedUsers, hotLocalTtlMillis);
+        return likedUsers;
     }
 
     /**
@@ -127,6 +179,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 return Result.fail("添加进Redis的set中失败");
             }
         }
+        //点赞集合已经变化，删除各个节点上的本地副本
+        localCache.invalidate(key);
+        localCache.broadcastInvalidate(key);
         return Result.ok();
     }
 
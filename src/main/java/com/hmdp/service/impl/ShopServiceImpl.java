@@ -1,35 +1,45 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.GeoPageResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClientUtil;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.GeoSessionStore;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopNameSuggester;
 import com.hmdp.utils.SystemConstants;
-import jodd.util.StringUtil;
+import com.hmdp.utils.TransactionUtil;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -39,12 +49,63 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
+    //全量构建布隆过滤器时每批查询的id个数
+    private static final int BLOOM_LOAD_BATCH_SIZE = 10000;
+    //全量重建GEO集合时每批读取的商铺数
+    private static final int GEO_REBUILD_BATCH_SIZE = 5000;
+    private static final long GEO_REBUILD_CLOCK_SKEW_SECONDS = 5;
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private CacheClientUtil cacheClientUtil;
+    @Autowired
+    private RedisBloomFilter shopBloomFilter;
+    @Autowired
+    private CacheInvalidator cacheInvalidator;
+    @Autowired
+    private ShopGeoIndex shopGeoIndex;
+    @Autowired
+    private GeoSessionStore geoSessionStore;
+    @Autowired
+    private ShopNameIndex shopNameIndex;
+    @Autowired
+    private ShopNameSuggester shopNameSuggester;
+
+    /**
+     * 启动时从数据库按id分批加载，全量构建商铺id的布隆过滤器
+     */
+    @PostConstruct
+    public void initShopBloomFilter() {
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Object> ids = listObjs(new QueryWrapper<Shop>()
+                        .select("id")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + BLOOM_LOAD_BATCH_SIZE));
+                shopBloomFilter.putAllLocal(ids);
+                if (ids.size() < BLOOM_LOAD_BATCH_SIZE) {
+                    break;
+                }
+                lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            }
+            shopBloomFilter.syncWithRedis();
+        } catch (Exception e) {
+            //构建失败时过滤器保持放行状态，不影响正常查询
+            log.error("商铺布隆过滤器构建失败", e);
+        }
+    }
+
     @Override
     public Result queryById(Long id) {
+        //布隆过滤器判断一定不存在的店铺，直接返回
+        if (!shopBloomFilter.mightContain(id)) {
+            return Result.fail("店铺不存在");
+        }
         //缓存穿透
 //        Shop shop = queryWithPassThrough(id);
         //用互斥锁解决缓存击穿
@@ -58,140 +119,23 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
     /**
-     * 基于互斥锁解决缓存击穿
+     * 基于互斥锁解决缓存击穿，并发未命中合并为一次重建，等待方由重建完成的通知唤醒
      * @param id
      * @return
      */
     public Shop queryWithMutex(Long id){
-        String key = RedisConstants.CACHE_SHOP_KEY+id;
-        //首先到redis中查询是否有
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //表示存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        //看看是否命中的是空字符串,解决缓存穿透设置的缓存空对象
-        if (shopJson!=null){
-            return null;
-        }
-        //不存在，实现缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
-        Shop shop = null;
-        try {
-            //首先获取互斥锁
-            boolean flag = tryLock(lockKey);
-            //判断是否获取成功，成功则则重建,失败则休眠，然后过段时间重试
-            if (!flag){
-                //表示失败
-                //先休眠
-                Thread.sleep(50);
-                //然后重试
-                return queryWithMutex(id);
-            }
-            //获取锁成功，二次检查缓存
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            //判断是否存在
-            if (StrUtil.isNotBlank(shopJson)) {
-                //表示存在，直接返回
-                shop = JSONUtil.toBean(shopJson, Shop.class);
-                return shop;
-            }
-            //不存在，则调用数据库
-            shop = getById(id);
-            Thread.sleep(200);//模拟缓存重建的延迟
-            if (shop==null){
-                //为了解决缓存穿透问题，在Redis中写入空对象
-                stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //存在，写入Redis
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        }catch (InterruptedException e){
-            throw new RuntimeException(e);
-        }finally {
-            //释放互斥锁
-            unLock(lockKey);
-        }
-        return shop;
-    }
-
-    /**
-     * 获取锁
-     * @param key
-     * @return
-     */
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+        return cacheClientUtil.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
-     * 释放锁
-     * @param key
-     */
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
-    }
-    //创建一个线程池
-    private static final ExecutorService CACHE_REBUID_EXECUTOR = Executors.newFixedThreadPool(10);
-    /**
-     * 基于逻辑过期时间解决缓存击穿
+     * 基于逻辑过期时间解决缓存击穿，先查本地缓存再查Redis
      * @param id
      * @return
      */
     public Shop queryWithLogicalExpire(Long id){
-        String key = RedisConstants.CACHE_SHOP_KEY+id;
-        //首先到redis中查询是否有
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //判断是否存在
-        if (StrUtil.isBlank(shopJson)) {
-            //表示不存在，返回空
-            return null;
-        }
-        //命中，判断是否逻辑过期
-        RedisData shopRedisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject shopJsonObject = (JSONObject) shopRedisData.getData();
-        Shop shop = JSONUtil.toBean(shopJsonObject, Shop.class);
-        LocalDateTime expireTime = shopRedisData.getExpireTime();
-        //如果没有过期，直接返回商铺信息
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //表示没有过期
-            return shop;
-        }
-        //如果过期，获取互斥锁，开启独立线程进行缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        //判断互斥锁是否可以获取成功
-        if (isLock){
-            //成功进行缓存的重建
-            //开启独立的线程，但是在开启独立线程之前，要进行Redis数据的双重检验
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            //命中，判断是否逻辑过期
-            shopRedisData = JSONUtil.toBean(shopJson, RedisData.class);
-            shopJsonObject = (JSONObject) shopRedisData.getData();
-            shop = JSONUtil.toBean(shopJsonObject, Shop.class);
-            expireTime = shopRedisData.getExpireTime();
-            //如果没有过期，直接返回商铺信息
-            if(expireTime.isAfter(LocalDateTime.now())){
-                //表示没有过期
-                return shop;
-            }
-            //过期了，则获取一个线程进行重建
-            CACHE_REBUID_EXECUTOR.submit(()->{
-                try {
-                    saveShop2Redis(id,20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(lockKey);
-                }
-            });
-        }
-        //不成功则返回旧的缓存信息
-        return shop;
+        return cacheClientUtil.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById, RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
     }
     /**
      * 缓存穿透解决方案
@@ -199,29 +143,28 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return
      */
     public Shop queryWithPassThrough(Long id){
-        String key = RedisConstants.CACHE_SHOP_KEY+id;
-        //首先到redis中查询是否有
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //表示存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        //不存在，看看是否命中的是空字符串""
-        if (shopJson!=null){
-            return null;
-        }
-        //不存在，直接到数据库中查询
-        Shop shop = getById(id);
-        if (shop==null){
-            //为了解决缓存穿透问题，在Redis中写入空对象
-            stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        //存在，写入Redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        return shop;
+        //布隆过滤器判断一定不存在，不访问Redis和数据库
+        return cacheClientUtil.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, shopBloomFilter);
+    }
+
+    /**
+     * 新增商铺，同时加入布隆过滤器
+     * @param shop
+     * @return
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        shopBloomFilter.put(shop.getId());
+        //加入附近商铺的GEO集合
+        syncShopGeo(null, shop);
+        shopNameIndex.put(shop);
+        //删除之前可能缓存的空对象
+        cacheInvalidator.invalidateAfterCommit(RedisConstants.CACHE_SHOP_KEY+shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     /**
@@ -236,15 +179,189 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(shop.getId()==null){
             return Result.fail("店铺id不能为空");
         }
+        //位置或者类型变化时，需要原来的类型把商铺从原来的GEO集合中移除
+        boolean moved = shop.getX()!=null||shop.getY()!=null||shop.getTypeId()!=null;
+        Shop old = moved ? getById(shop.getId()) : null;
         //首先更新数据库
         updateById(shop);
-        //然后删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY+shop.getId());
+        Shop updated = getById(shop.getId());
+        //事务提交后删除缓存，并在延迟一段时间后再删除一次，失败时重试
+        //先注册缓存删除，后面的索引同步失败时不会影响缓存删除
+        cacheInvalidator.invalidateAfterCommit(RedisConstants.CACHE_SHOP_KEY+shop.getId());
+        TransactionUtil.afterCommit(() -> {
+            try {
+                if (old!=null){
+                    syncShopGeo(old, updated);
+                }
+                if (updated!=null){
+                    shopNameIndex.put(updated);
+                }
+            } catch (Exception e) {
+                //索引和数据库不一致时可以通过全量重建修复
+                log.error("同步商铺的GEO和名称索引失败, id={}", shop.getId(), e);
+            }
+        });
         return Result.ok();
     }
 
+    /**
+     * 删除商铺，同时从GEO集合中移除并删除缓存
+     * @param id
+     * @return
+     */
+    @Override
+    @Transactional
+    public Result deleteShop(Long id) {
+        Shop old = getById(id);
+        if (old==null){
+            return Result.fail("店铺不存在");
+        }
+        removeById(id);
+        cacheInvalidator.invalidateAfterCommit(RedisConstants.CACHE_SHOP_KEY+id);
+        TransactionUtil.afterCommit(() -> {
+            try {
+                syncShopGeo(old, null);
+                shopNameIndex.remove(id);
+            } catch (Exception e) {
+                //索引和数据库不一致时可以通过全量重建修复
+                log.error("同步商铺的GEO和名称索引失败, id={}", id, e);
+            }
+        });
+        return Result.ok();
+    }
+
+    /**
+     * 商铺新增、移动、换类型或者删除后，同步Redis的GEO集合和进程内的空间索引
+     * 正在全量重建时，同时从临时集合中移除，避免重建完成后把旧位置带回来
+     * @param old 修改前的商铺，新增时为null
+     * @param updated 修改后的商铺，删除时为null
+     */
+    private void syncShopGeo(Shop old, Shop updated) {
+        Long shopId = old!=null ? old.getId() : updated.getId();
+        byte[] member = shopId.toString().getBytes(StandardCharsets.UTF_8);
+        boolean typeChanged = old!=null && (updated==null || !old.getTypeId().equals(updated.getTypeId()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            if (typeChanged){
+                connection.zRem(geoKey(old.getTypeId()), member);
+                connection.zRem(geoRebuildKey(old.getTypeId()), member);
+            }
+            if (updated!=null && updated.getX()!=null && updated.getY()!=null){
+                //GEOADD会覆盖同一个成员原来的位置
+                connection.geoAdd(geoKey(updated.getTypeId()), new Point(updated.getX(), updated.getY()), member);
+            }
+            return null;
+        });
+        if (updated!=null){
+            shopGeoIndex.put(updated);
+        } else {
+            shopGeoIndex.remove(shopId);
+        }
+    }
+
+    private static byte[] geoKey(Long typeId) {
+        return (RedisConstants.SHOP_GEO_KEY+typeId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] geoRebuildKey(Long typeId) {
+        return (RedisConstants.SHOP_GEO_KEY+typeId+RedisConstants.SHOP_GEO_REBUILD_SUFFIX).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 全量重建所有类型的GEO集合
+     * 按id分批读取tb_shop，每批按类型分组，在一个pipeline中对每个类型执行一次多成员GEOADD，写入临时集合，
+     * 全部写完后用RENAME原子替换，已删除的商铺随之移除；最后补上重建期间新增或修改的商铺
+     * @return 商铺数量、耗时、每秒行数
+     */
     @Override
-    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+    public Map<String, Object> rebuildShopGeo() {
+        long begin = System.currentTimeMillis();
+        //数据库时间和应用时间可能有偏差，多补一段时间
+        LocalDateTime since = LocalDateTime.now().minusSeconds(GEO_REBUILD_CLOCK_SKEW_SECONDS);
+        List<Long> typeIds = listObjs(new QueryWrapper<Shop>().select("DISTINCT type_id")).stream()
+                .map(typeId -> ((Number) typeId).longValue())
+                .collect(Collectors.toList());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            typeIds.forEach(typeId -> connection.del(geoRebuildKey(typeId)));
+            return null;
+        });
+        Set<Long> rebuiltTypes = new HashSet<>();
+        long rows = 0;
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = list(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + GEO_REBUILD_BATCH_SIZE));
+            if (shops.isEmpty()) {
+                break;
+            }
+            Map<Long, Map<byte[], Point>> byType = new HashMap<>();
+            for (Shop shop : shops) {
+                if (shop.getX() == null || shop.getY() == null) {
+                    continue;
+                }
+                rebuiltTypes.add(shop.getTypeId());
+                byType.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                        .put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byType.forEach((typeId, members) -> connection.geoAdd(geoRebuildKey(typeId), members));
+                return null;
+            });
+            rows += shops.size();
+            if (shops.size() < GEO_REBUILD_BATCH_SIZE) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        //原子替换，查询不会看到重建了一半的集合
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long typeId : typeIds) {
+                //没有坐标的类型没有临时集合，RENAME会报错
+                if (rebuiltTypes.contains(typeId)) {
+                    connection.rename(geoRebuildKey(typeId), geoKey(typeId));
+                } else {
+                    connection.del(geoKey(typeId));
+                }
+            }
+            return null;
+        });
+        //重建期间新增、移动的商铺可能没有被读到，或者读到的是旧位置
+        List<Shop> changed = list(new QueryWrapper<Shop>()
+                .select("id", "type_id", "x", "y")
+                .ge("update_time", since));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : changed) {
+                byte[] member = shop.getId().toString().getBytes(StandardCharsets.UTF_8);
+                for (Long typeId : typeIds) {
+                    if (!typeId.equals(shop.getTypeId())) {
+                        connection.zRem(geoKey(typeId), member);
+                    }
+                }
+                if (shop.getX() != null && shop.getY() != null) {
+                    connection.geoAdd(geoKey(shop.getTypeId()), new Point(shop.getX(), shop.getY()), member);
+                }
+            }
+            return null;
+        });
+        long costMillis = System.currentTimeMillis() - begin;
+        log.info("商铺GEO集合重建完成，共{}条，耗时{}ms", rows, costMillis);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rows", rows);
+        result.put("types", typeIds.size());
+        result.put("reapplied", changed.size());
+        result.put("costMillis", costMillis);
+        result.put("rowsPerSecond", costMillis == 0 ? rows : rows * 1000 / costMillis);
+        return result;
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y,
+                                  Double radius, Double lastDistance, Long lastId, String session) {
+        if (current == null || current < 1) {
+            return Result.fail("页码必须大于0");
+        }
         //判断是否需要根据x,y查询
         if (x==null||y==null){
             //不需要，直接查询数据库
@@ -255,52 +372,192 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             // 返回数据
             return Result.ok(page.getRecords());
         }
+        if (radius != null && !(radius > 0)) {
+            return Result.fail("搜索半径必须大于0");
+        }
+        double searchRadius = radius == null ? SystemConstants.DEFAULT_SEARCH_RADIUS
+                : Math.min(radius, SystemConstants.MAX_SEARCH_RADIUS);
         //计算分页参数
         int from = (current-1)*SystemConstants.DEFAULT_PAGE_SIZE;
-        int end = current*SystemConstants.DEFAULT_PAGE_SIZE;
-        //查询，按照距离排序，分页，结果:shopId,distance
+        int end = from+SystemConstants.DEFAULT_PAGE_SIZE;
+        if (lastDistance != null && lastId != null) {
+            //带游标时从游标之后取一页，客户端用最后一个商铺的距离和id作为下一页的游标
+            List<ShopGeoIndex.Hit> hits = searchGeo(typeId, x, y, searchRadius,
+                    SystemConstants.DEFAULT_PAGE_SIZE, lastDistance, lastId);
+            return Result.ok(new GeoPageResult(toShops(hits, x, y), null));
+        }
+        //按页码翻页时使用结果快照，客户端传回令牌时使用第一页的快照
+        GeoSessionStore.Session geoSession = geoSessionStore.parse(session, typeId);
+        if (geoSession == null) {
+            geoSession = geoSessionStore.parse(geoSessionStore.tokenOf(typeId, x, y, searchRadius), typeId);
+        }
+        long[] snapshot = geoSessionStore.getOrBuild(geoSession, s -> {
+            List<ShopGeoIndex.Hit> hits = searchGeo(typeId, s.getX(), s.getY(), s.getRadius(),
+                    geoSessionStore.getMaxSize(), null, null);
+            return hits.stream().mapToLong(ShopGeoIndex.Hit::getId).toArray();
+        });
+        List<ShopGeoIndex.Hit> hits;
+        if (from < snapshot.length) {
+            //从快照中截取，距离按用户的实际位置计算
+            hits = new ArrayList<>(end-from);
+            for (int i = from; i < Math.min(end, snapshot.length); i++) {
+                hits.add(new ShopGeoIndex.Hit(snapshot[i], 0));
+            }
+        } else if (snapshot.length < geoSessionStore.getMaxSize()) {
+            //快照已经包含半径内的全部商铺
+            hits = Collections.emptyList();
+        } else {
+            //超过快照的深页，直接查询
+            hits = searchGeo(typeId, x, y, geoSession.getRadius(), end, null, null);
+            hits = hits.size() <= from ? Collections.emptyList() : hits.subList(from, hits.size());
+        }
+        //快照按格子中心点排序，一页之内按用户的实际距离重新排序
+        List<Shop> shops = toShops(hits, x, y);
+        shops.sort(Comparator.comparing(Shop::getDistance));
+        return Result.ok(new GeoPageResult(shops, geoSession.getToken()));
+    }
+
+    /**
+     * 查询附近的商铺，按距离从近到远
+     */
+    private List<ShopGeoIndex.Hit> searchGeo(Integer typeId, double x, double y, double radius,
+                                             int limit, Double lastDistance, Long lastId) {
+        if (shopGeoIndex.isReady()) {
+            //进程内的空间索引
+            return shopGeoIndex.search(typeId.longValue(), x, y, radius, limit, lastDistance, lastId);
+        }
+        //索引还没有构建完成，查询Redis
+        if (lastDistance == null || lastId == null) {
+            return searchGeoInRedis(typeId, x, y, radius, limit);
+        }
+        //GEOSEARCH不能从游标开始，先多取几页再过滤掉游标之前的商铺，不够一页并且半径内还有商铺时加倍再取
+        //最多取MAX_GEO_FETCH个，索引构建完成之前更深的游标只返回这个范围内的商铺
+        int fetch = Math.min(limit * 4, SystemConstants.MAX_GEO_FETCH);
+        while (true) {
+            List<ShopGeoIndex.Hit> hits = searchGeoInRedis(typeId, x, y, radius, fetch);
+            List<ShopGeoIndex.Hit> after = new ArrayList<>(limit);
+            for (ShopGeoIndex.Hit hit : hits) {
+                if (hit.getDistance() < lastDistance || (hit.getDistance() == lastDistance && hit.getId() <= lastId)) {
+                    continue;
+                }
+                after.add(hit);
+                if (after.size() == limit) {
+                    return after;
+                }
+            }
+            if (hits.size() < fetch || fetch >= SystemConstants.MAX_GEO_FETCH) {
+                return after;
+            }
+            fetch = Math.min(fetch * 2, SystemConstants.MAX_GEO_FETCH);
+        }
+    }
+
+    /**
+     * 根据id批量查询shop，并计算到(x, y)的距离
+     */
+    private List<Shop> toShops(List<ShopGeoIndex.Hit> hits, double x, double y) {
+        if (hits.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> ids = hits.stream().map(ShopGeoIndex.Hit::getId).collect(Collectors.toList());
+        //缓存中的对象是共享的，复制后再设置距离
+        List<Shop> shopList = new ArrayList<>(ids.size());
+        for (Shop shop : listShopsByCache(ids)) {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(ShopGeoIndex.distance(x, y, shop.getX(), shop.getY()));
+            shopList.add(copy);
+        }
+        return shopList;
+    }
+
+    /**
+     * 使用Redis GEOSEARCH查询附近的商铺
+     * @param limit 最多返回的数量
+     * @return 按距离排序
+     */
+    private List<ShopGeoIndex.Hit> searchGeoInRedis(Integer typeId, Double x, Double y, double radius, int limit) {
         String key = RedisConstants.SHOP_GEO_KEY+typeId;
+        RedisGeoCommands.GeoSearchCommandArgs args = RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs()
+                .includeDistance().sortAscending().limit(limit);
         GeoResults<RedisGeoCommands.GeoLocation<String>> geoResults = stringRedisTemplate
                 .opsForGeo()
-                .search(key,
-                        GeoReference.fromCoordinate(x, y),
-                        new Distance(5000),
-                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end));//查询到0-end，然后截取
+                .search(key, GeoReference.fromCoordinate(x, y), new Distance(radius), args);
         if (geoResults==null){
-            return Result.ok(Collections.emptyList());
+            return Collections.emptyList();
         }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = geoResults.getContent();
-        //截取从from到end
-        List<Long> ids = new ArrayList<>(content.size());
-        Map<String,Distance> map = new HashMap<>(content.size());
-        if(content.size()<from){
+        List<ShopGeoIndex.Hit> hits = new ArrayList<>(geoResults.getContent().size());
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : geoResults.getContent()) {
+            long id = Long.parseLong(result.getContent().getName());
+            hits.add(new ShopGeoIndex.Hit(id, result.getDistance().getValue()));
+        }
+        return hits;
+    }
+
+    @Override
+    public Result queryShopByIds(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
-        content.stream().skip(from).forEach(result->{
-            String shopIdStr = result.getContent().getName();
-            ids.add(Long.valueOf(shopIdStr));
-            //获取距离
-            Distance distance = result.getDistance();
-            map.put(shopIdStr,distance);
-        });
-        String idStr = StringUtil.join(ids, ",");
-        //根据id查询shop
-        List<Shop> shopList = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shopList) {
-            shop.setDistance(map.get(shop.getId().toString()).getValue());
+        if (ids.size() > SystemConstants.MAX_BATCH_SIZE) {
+            return Result.fail("一次最多查询" + SystemConstants.MAX_BATCH_SIZE + "个商铺");
         }
-        //返回
-        return Result.ok(shopList);
+        return Result.ok(listShopsByCache(ids));
+    }
+
+    /**
+     * 按名称搜索商铺：从进程内的倒排索引取出排好序的一页id，再批量从缓存读取
+     * 索引构建完成之前仍然使用数据库LIKE查询
+     * @param name 关键词，为空时按id分页返回全部商铺
+     * @param current 页码
+     * @return
+     */
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        if (current == null || current < 1) {
+            return Result.fail("页码必须大于0");
+        }
+        if (StrUtil.isBlank(name) || !shopNameIndex.isReady()){
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        int offset = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        List<Long> ids = shopNameIndex.search(name, offset, SystemConstants.MAX_PAGE_SIZE);
+        if (ids.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        return Result.ok(listShopsByCache(ids));
+    }
+
+    /**
+     * 商铺名称前缀补全，直接从内存中的字典树返回，不访问Redis和数据库
+     * @param prefix
+     * @param limit
+     * @return
+     */
+    @Override
+    public Result suggestShopName(String prefix, Integer limit) {
+        return Result.ok(shopNameSuggester.suggest(prefix, limit));
+    }
+
+    /**
+     * 批量查询商铺：一次MGET，未命中的一次批量查询数据库
+     * @param ids
+     * @return 按ids的顺序返回，不存在的跳过
+     */
+    public List<Shop> listShopsByCache(List<Long> ids) {
+        //布隆过滤器去掉一定不存在的id
+        List<Long> existIds = ids.stream().filter(shopBloomFilter::mightContain).collect(Collectors.toList());
+        return cacheClientUtil.getAll(RedisConstants.CACHE_SHOP_KEY, existIds, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
     }
 
     public void saveShop2Redis(Long id,Long expireSeconds) throws InterruptedException {
         Shop shop = getById(id);
-        //封装成RedisData
-        RedisData<Shop> shopRedisData = new RedisData<>();
-        shopRedisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        shopRedisData.setData(shop);
         Thread.sleep(200);//模拟缓存重建的过程
-        //写入Redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(shopRedisData));
+        //封装成RedisData写入Redis
+        cacheClientUtil.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY+id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 }
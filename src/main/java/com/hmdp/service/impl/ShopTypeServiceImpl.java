@@ -1,18 +1,29 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * <p>
@@ -22,37 +33,115 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
-    /**
-     * 利用Redis进行缓存
-     * @return
-     */
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+    //检查Redis中版本号的间隔
+    @Value("${hmdp.shop-type.check-seconds:5}")
+    private long checkSeconds;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shop-type-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ShopTypeSnapshot snapshot;
+
+    @PostConstruct
+    public void init() {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                refreshIfChanged();
+            } catch (Exception e) {
+                //继续使用旧的快照
+                log.error("检查商铺类型版本失败", e);
+            }
+        }, checkSeconds, checkSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 商铺类型保存在进程内的快照中，不再每次请求读取Redis
+     * @return 不可修改的列表
+     */
     @Override
     public List<ShopType> listByCache() {
-        String key = RedisConstants.CACHE_SHOPTYPE_KEY;
-        //首先从Redis从获取
-        List<String> shopTypes = stringRedisTemplate.opsForList().range(key,0,9);
-        //判断
-        List<ShopType> shopTypesByRedis = new ArrayList<>();
-        if (shopTypes.size()!=0) {
-            //表示可以查询到
-            //进行转换
-            for (String shopType : shopTypes) {
-                ShopType type = JSONUtil.toBean(shopType, ShopType.class);
-                shopTypesByRedis.add(type);
+        return getSnapshot().getTypes();
+    }
+
+    @Override
+    public ShopTypeSnapshot getSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = load(currentVersion());
             }
-            return shopTypesByRedis;
+            return snapshot;
+        }
+    }
+
+    /**
+     * 修改tb_shop_type之后调用，版本号加一，所有节点在下一次检查时重新加载
+     * @return 新的版本号
+     */
+    @Override
+    public long publishChange() {
+        Long version = stringRedisTemplate.opsForValue().increment(RedisConstants.CACHE_SHOPTYPE_VERSION_KEY);
+        long newVersion = version == null ? 0 : version;
+        //当前节点立即生效
+        synchronized (this) {
+            snapshot = load(newVersion);
         }
-        //未命中
-        List<ShopType> shopTypesByMysql = query().orderByAsc("sort").list();
-        //存入redis中
-        for (ShopType shopType : shopTypesByMysql) {
-            String s = JSONUtil.toJsonStr(shopType);
-            stringRedisTemplate.opsForList().rightPushAll(key,s);
+        return newVersion;
+    }
+
+    /**
+     * Redis中的版本号和快照不一致时重新加载
+     */
+    private void refreshIfChanged() {
+        long version = currentVersion();
+        ShopTypeSnapshot current = snapshot;
+        if (current != null && current.getVersion() == version) {
+            return;
+        }
+        synchronized (this) {
+            //先读版本号再查数据库，加载期间版本号变化时下一次检查会再加载
+            snapshot = load(version);
+        }
+        log.info("商铺类型已刷新，版本：{}", version);
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOPTYPE_VERSION_KEY);
+        return StrUtil.isBlank(version) ? 0 : Long.parseLong(version);
+    }
+
+    /**
+     * 从数据库加载，并把响应体序列化好
+     */
+    private ShopTypeSnapshot load(long version) {
+        List<ShopType> types = Collections.unmodifiableList(query().orderByAsc("sort").list());
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
         }
-        return shopTypesByMysql;
+        //内容相同的快照在所有节点上ETag相同
+        CRC32 crc32 = new CRC32();
+        crc32.update(body);
+        String etag = "\"" + version + "-" + Long.toHexString(crc32.getValue()) + "\"";
+        return new ShopTypeSnapshot(version, types, body, etag);
     }
-}
\ No newline at end of file
+}
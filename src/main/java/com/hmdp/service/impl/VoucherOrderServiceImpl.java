@@ -1,35 +1,64 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.RateMeter;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SeckillActivator;
+import com.hmdp.utils.SeckillBatcher;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SoldOutFlags;
 import com.hmdp.utils.UserHolder;
-import lombok.SneakyThrows;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.models.stream.ClaimedMessages;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -49,10 +78,74 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIdWorker redisIdWorker;
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private SoldOutFlags soldOutFlags;
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+    @Autowired
+    private SeckillActivator seckillActivator;
+    @Autowired
+    private SeckillBuyers seckillBuyers;
+    @Autowired
+    private SeckillBatcher seckillBatcher;
+    @Autowired
+    private OrderStatusStore orderStatusStore;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    //秒杀脚本返回值对应的提示
+    private static final String[] SECKILL_FAILURES = {null, "库存不足", "不能重复下单", "秒杀未开始", "秒杀已经结束", "秒杀不在进行中"};
 
+    //后台线程中调用事务方法需要使用代理对象
+    @Lazy
+    @Autowired
     private IVoucherOrderService proxy;
+    //消费者一次读取的订单数
+    @Value("${hmdp.seckill.batch-size:100}")
+    private int batchSize;
+    //一条INSERT语句最多写入的行数
+    private static final int INSERT_BATCH_SIZE = 500;
+
+    private final LongAdder consumedCount = new LongAdder();
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder batchMillis = new LongAdder();
+    private final RateMeter createdRate = new RateMeter(10);
+    private final LongAdder claimedCount = new LongAdder();
+    private final LongAdder retryCount = new LongAdder();
+    private final LongAdder deadLetterCount = new LongAdder();
+    private final LongAdder replayedCount = new LongAdder();
+    private final LongAdder discardedCount = new LongAdder();
+
+    private static final String ORDER_STREAM = "stream.orders";
+    //多次处理失败的订单消息
+    private static final String DLQ_STREAM = ORDER_STREAM + ".dlq";
+    private static final String GROUP = "g1";
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+    //认领其它消费者的pending消息时使用的消费者名称
+    private static final String CLAIM_CONSUMER = NODE_ID + "-claim";
+    //每个节点的消费者线程数
+    @Value("${hmdp.seckill.consumer.threads:1}")
+    private int consumerThreads;
+    //订单队列的分区数，大于1时使用stream.orders.0 ~ stream.orders.{n-1}
+    @Value("${hmdp.seckill.partitions:1}")
+    private int partitions;
+    //按user或者voucher的hash选择分区
+    @Value("${hmdp.seckill.partition-by:user}")
+    private String partitionBy;
+    //pending消息空闲超过这个时间后被其它消费者认领
+    @Value("${hmdp.seckill.claim-idle-seconds:60}")
+    private long claimIdleSeconds;
+    //空闲超过这个时间并且没有pending消息的消费者从消费者组中删除
+    @Value("${hmdp.seckill.dead-consumer-seconds:3600}")
+    private long deadConsumerSeconds;
+    //消息投递这么多次仍然失败后转入死信队列
+    @Value("${hmdp.seckill.retry.max-attempts:5}")
+    private int maxAttempts;
+    //第一次重试前的等待时间，之后每次翻倍
+    @Value("${hmdp.seckill.retry.base-millis:1000}")
+    private long retryBaseMillis;
+    @Value("${hmdp.seckill.retry.max-millis:30000}")
+    private long retryMaxMillis;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
@@ -84,39 +177,71 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    //创建线程池
-    private static final ExecutorService SECKILL_ORDER_EXCUTOR = Executors.newSingleThreadExecutor();
+    //每个节点启动若干个消费者线程，消费者名称是节点id加线程序号，不同节点、不同线程互不冲突
+    private ExecutorService seckillOrderExecutor;
+    //定期认领宕机消费者留下的pending消息
+    private final ScheduledExecutorService claimExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-order-claimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = true;
+
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXCUTOR.submit(new VoucherOrderHandeller());
+        for (String stream : streams()) {
+            createGroup(stream);
+        }
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerThreads, r -> {
+            Thread thread = new Thread(r, "seckill-order-consumer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < consumerThreads; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandeller(NODE_ID + "-" + i, streamsOf(i)));
+        }
+        claimExecutor.scheduleWithFixedDelay(this::claimPending, claimIdleSeconds, claimIdleSeconds, TimeUnit.SECONDS);
     }
-    String queueName = "stream.orders";
+
+    @PreDestroy
+    private void shutdown() {
+        running = false;
+        seckillOrderExecutor.shutdownNow();
+        claimExecutor.shutdownNow();
+    }
+
     private class VoucherOrderHandeller implements Runnable {
-        @SneakyThrows
+        private final String consumer;
+        private final StreamOffset<String>[] newOffsets;
+        private final StreamOffset<String>[] pendingOffsets;
+
+        VoucherOrderHandeller(String consumer, List<String> streams) {
+            this.consumer = consumer;
+            this.newOffsets = offsets(streams, ReadOffset.lastConsumed());
+            this.pendingOffsets = offsets(streams, ReadOffset.from("0"));
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    //获取消息队列队列中的订单信息
+                    //获取消息队列中的订单信息，一次最多读取batchSize条
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(GROUP, consumer),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            newOffsets
                     );
                     //判断消息获取是否成功
                     if (list==null || list.isEmpty()){
                         //如果获取失败，说明没有消息，继续下一个循环
                         continue;
                     }
-                    //解析消息中的信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //ack进行确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    //整批下单，一个事务完成
+                    handleVoucherOrders(list);
                 } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
                     log.error("异常为:", e);
                     handlePendingList();
                 }
@@ -124,68 +249,484 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
 
         private void handlePendingList() {
-            while (true) {
+            while (running) {
                 try {
-                    //获取消息队列队列中的订单信息
+                    //获取pending list中的订单信息
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            Consumer.from(GROUP, consumer),
+                            StreamReadOptions.empty().count(batchSize),
+                            pendingOffsets
                     );
                     //判断消息获取是否成功
                     if (list==null || list.isEmpty()){
                         //如果获取失败，说明pendingList没有消息，结束循环
                         break;
                     }
-                    //解析消息中的信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //ack进行确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    //失败的消息按投递次数退避，不会反复重试占满CPU
+                    long backoff = retryOrDeadLetter(handleWithFallback(list));
+                    if (backoff > 0 && !sleep(backoff)) {
+                        return;
+                    }
                 } catch (Exception e) {
                     log.error("异常为:", e);
+                    //Redis或数据库不可用，等待后重试
+                    if (!sleep(retryBaseMillis)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待一段时间，被中断时返回false
+     */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 整批失败时逐条处理，其它订单不受有问题的消息影响
+     */
+    private Map<MapRecord<String, Object, Object>, Exception> handleWithFallback(List<MapRecord<String, Object, Object>> records) {
+        try {
+            handleVoucherOrders(records);
+            return Collections.emptyMap();
+        } catch (Exception e) {
+            log.error("批量处理pending list失败，逐条处理", e);
+            Map<MapRecord<String, Object, Object>, Exception> failures = new LinkedHashMap<>();
+            for (MapRecord<String, Object, Object> record : records) {
+                try {
+                    handleVoucherOrders(Collections.singletonList(record));
+                } catch (Exception ex) {
+                    log.error("处理订单消息{}失败", record.getId(), ex);
+                    failures.put(record, ex);
                 }
             }
+            return failures;
+        }
+    }
+
+    /**
+     * 处理失败的消息：XPENDING中的投递次数达到max-attempts的转入死信队列并确认，其它的留在pending list中重试
+     * @param failures 失败的消息和异常
+     * @return 下一次重试前等待的毫秒数，按投递次数指数增长，没有需要重试的消息时为0
+     */
+    private long retryOrDeadLetter(Map<MapRecord<String, Object, Object>, Exception> failures) {
+        long backoff = 0;
+        List<VoucherOrder> dead = new ArrayList<>();
+        for (Map.Entry<MapRecord<String, Object, Object>, Exception> entry : failures.entrySet()) {
+            MapRecord<String, Object, Object> record = entry.getKey();
+            long attempts = deliveryCount(record);
+            if (attempts == 0) {
+                //已经被其它消费者确认
+                continue;
+            }
+            if (attempts >= maxAttempts) {
+                deadLetter(record, attempts, entry.getValue());
+                dead.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                continue;
+            }
+            retryCount.increment();
+            long delay = retryBaseMillis << Math.min(attempts - 1, 20);
+            backoff = Math.max(backoff, Math.min(delay, retryMaxMillis));
+        }
+        orderStatusStore.complete(dead, OrderStatusStore.FAILED);
+        return backoff;
+    }
+
+    /**
+     * 消息的投递次数，每次XREADGROUP读取pending list或者认领都会加1
+     * @return 不在pending list中时为0
+     */
+    private long deliveryCount(MapRecord<String, Object, Object> record) {
+        String id = record.getId().getValue();
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(record.getStream(), GROUP, Range.closed(id, id), 1L);
+        for (PendingMessage message : pending) {
+            return message.getTotalDeliveryCount();
+        }
+        return 0;
+    }
+
+    /**
+     * 转入死信队列，保留原始字段、来源队列、投递次数和最后一次的异常，再确认原消息
+     * 死信消息仍然占用秒杀脚本扣减的库存和购买记录，重放时继续使用，丢弃时归还
+     */
+    private void deadLetter(MapRecord<String, Object, Object> record, long attempts, Exception e) {
+        Map<String, String> values = new HashMap<>();
+        record.getValue().forEach((k, v) -> values.put(k.toString(), v.toString()));
+        values.put("stream", record.getStream());
+        values.put("originId", record.getId().getValue());
+        values.put("attempts", String.valueOf(attempts));
+        values.put("error", StrUtil.maxLength(e.getClass().getSimpleName() + ": " + e.getMessage(), 500));
+        stringRedisTemplate.opsForStream().add(DLQ_STREAM, values);
+        stringRedisTemplate.opsForStream().acknowledge(record.getStream(), GROUP, record.getId());
+        deadLetterCount.increment();
+        log.error("订单消息{}投递{}次仍然失败，转入死信队列{}", record.getId(), attempts, DLQ_STREAM);
+    }
+
+    @Override
+    public List<Map<String, Object>> listDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(DLQ_STREAM, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<String, Object>> letters = new ArrayList<>();
+        if (records == null) {
+            return letters;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, Object> letter = new LinkedHashMap<>();
+            letter.put("id", record.getId().getValue());
+            record.getValue().forEach((k, v) -> letter.put(k.toString(), v));
+            letters.add(letter);
+        }
+        return letters;
+    }
+
+    @Override
+    public Result replayDeadLetter(String id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(DLQ_STREAM, Range.closed(id, id));
+        if (records == null || records.isEmpty()) {
+            return Result.fail("死信消息不存在");
+        }
+        Map<Object, Object> letter = records.get(0).getValue();
+        Long userId = Long.valueOf(letter.get("userId").toString());
+        Long voucherId = Long.valueOf(letter.get("voucherId").toString());
+        long orderId = Long.parseLong(letter.get("id").toString());
+        Map<String, String> values = new HashMap<>(4);
+        values.put("userId", userId.toString());
+        values.put("voucherId", voucherId.toString());
+        values.put("id", String.valueOf(orderId));
+        //先删除死信消息，只有删除成功的请求继续，并发的重放和丢弃不会重复处理同一条消息
+        Long deleted = stringRedisTemplate.opsForStream().delete(DLQ_STREAM, id);
+        if (deleted == null || deleted == 0) {
+            return Result.fail("死信消息不存在");
+        }
+        //先改回排队中再写入订单队列，消费者写入的最终状态不会被覆盖
+        String previous = orderStatusStore.requeue(orderId, userId);
+        //重新写入订单队列，投递次数从头计算
+        try {
+            stringRedisTemplate.opsForStream().add(streamOf(voucherId, userId), values);
+        } catch (Exception e) {
+            //写入失败时恢复原来的状态并放回死信队列，可以再次重放
+            orderStatusStore.restore(orderId, previous);
+            Map<String, String> copy = new HashMap<>();
+            letter.forEach((k, v) -> copy.put(k.toString(), v.toString()));
+            stringRedisTemplate.opsForStream().add(DLQ_STREAM, copy);
+            throw e;
+        }
+        replayedCount.increment();
+        return Result.ok();
+    }
+
+    @Override
+    public Result discardDeadLetter(String id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(DLQ_STREAM, Range.closed(id, id));
+        if (records == null || records.isEmpty()) {
+            return Result.fail("死信消息不存在");
+        }
+        Long deleted = stringRedisTemplate.opsForStream().delete(DLQ_STREAM, id);
+        if (deleted == null || deleted == 0) {
+            //已经被并发的重放或者丢弃处理
+            return Result.fail("死信消息不存在");
+        }
+        //订单不会再创建，归还秒杀脚本扣减的库存，删除购买记录让用户可以重新下单
+        Map<Object, Object> letter = records.get(0).getValue();
+        Long userId = Long.valueOf(letter.get("userId").toString());
+        Long voucherId = Long.valueOf(letter.get("voucherId").toString());
+        seckillActivator.addStock(voucherId, 1);
+        seckillBuyers.remove(seckillStockShards.buyerOrderKey(voucherId, userId), userId);
+        soldOutFlags.clear(voucherId);
+        discardedCount.increment();
+        return Result.ok();
+    }
+
+    /**
+     * 用XAUTOCLAIM认领空闲时间超过claim-idle-seconds的pending消息，并删除已经没有pending消息的宕机消费者
+     * 正常的消费者处理一批只需要几十毫秒，空闲这么久的消息属于已经宕机或者重启前的消费者
+     */
+    private void claimPending() {
+        for (String stream : streams()) {
+            try {
+                String cursor = "0-0";
+                do {
+                    ClaimedMessages<byte[], byte[]> claimed = autoClaim(stream, cursor);
+                    cursor = claimed.getId();
+                    if (claimed.getMessages().isEmpty()) {
+                        continue;
+                    }
+                    List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.getMessages().size());
+                    for (StreamMessage<byte[], byte[]> message : claimed.getMessages()) {
+                        Map<Object, Object> values = new HashMap<>();
+                        message.getBody().forEach((k, v) -> values.put(
+                                new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+                        records.add(StreamRecords.newRecord().in(stream).withId(RecordId.of(message.getId())).ofMap(values));
+                    }
+                    claimedCount.add(records.size());
+                    log.warn("从订单队列{}认领了{}条pending消息", stream, records.size());
+                    //处理失败的消息留在当前节点的pending list中，空闲时间再次超过阈值后重新认领，次数过多时转入死信队列
+                    retryOrDeadLetter(handleWithFallback(records));
+                } while (running && !"0-0".equals(cursor));
+                removeDeadConsumers(stream);
+            } catch (Exception e) {
+                log.error("认领订单队列{}的pending消息失败", stream, e);
+            }
+        }
+    }
+
+    /**
+     * Spring Data Redis 2.6还不支持XAUTOCLAIM，使用Lettuce的原生连接
+     */
+    private ClaimedMessages<byte[], byte[]> autoClaim(String stream, String cursor) {
+        return stringRedisTemplate.execute((RedisCallback<ClaimedMessages<byte[], byte[]>>) connection -> {
+            @SuppressWarnings("unchecked")
+            RedisClusterAsyncCommands<byte[], byte[]> commands =
+                    (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            XAutoClaimArgs<byte[]> args = XAutoClaimArgs.Builder.xautoclaim(
+                    io.lettuce.core.Consumer.from(GROUP.getBytes(StandardCharsets.UTF_8), CLAIM_CONSUMER.getBytes(StandardCharsets.UTF_8)),
+                    Duration.ofSeconds(claimIdleSeconds), cursor).count(batchSize);
+            try {
+                return commands.xautoclaim(stream.getBytes(StandardCharsets.UTF_8), args).get();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * 每次重启都会产生新的消费者名称，长时间空闲并且没有pending消息的消费者从消费者组中删除
+     */
+    private void removeDeadConsumers(String stream) {
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(stream, GROUP);
+        consumers.forEach(consumer -> {
+            if (consumer.pendingCount() == 0 && consumer.idleTimeMs() > TimeUnit.SECONDS.toMillis(deadConsumerSeconds)) {
+                stringRedisTemplate.opsForStream().deleteConsumer(stream, Consumer.from(GROUP, consumer.consumerName()));
+                log.info("删除空闲的订单消费者{}, stream={}", consumer.consumerName(), stream);
+            }
+        });
+    }
+
+    private void createGroup(String stream) {
+        try {
+            //队列不存在时一起创建
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    stream.getBytes(StandardCharsets.UTF_8), GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //消费者组已经存在
+            log.debug("订单队列{}的消费者组已存在", stream);
+        }
+    }
+
+    /**
+     * 全部订单队列，只有一个分区时仍然使用stream.orders
+     */
+    private List<String> streams() {
+        if (partitions <= 1) {
+            return Collections.singletonList(ORDER_STREAM);
+        }
+        List<String> streams = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            streams.add(ORDER_STREAM + "." + i);
+        }
+        return streams;
+    }
+
+    /**
+     * 第i个消费者线程负责的分区，线程数多于分区数时多个线程消费同一个分区
+     */
+    private List<String> streamsOf(int i) {
+        List<String> streams = streams();
+        List<String> owned = new ArrayList<>();
+        for (int p = 0; p < streams.size(); p++) {
+            if (p % consumerThreads == i) {
+                owned.add(streams.get(p));
+            }
+        }
+        if (owned.isEmpty()) {
+            owned.add(streams.get(i % streams.size()));
+        }
+        return owned;
+    }
+
+    /**
+     * 订单写入的分区，按用户或者优惠券的hash选择
+     */
+    private String streamOf(Long voucherId, Long userId) {
+        if (partitions <= 1) {
+            return ORDER_STREAM;
+        }
+        long key = "voucher".equals(partitionBy) ? voucherId : userId;
+        return ORDER_STREAM + "." + Math.floorMod(Long.hashCode(key), partitions);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StreamOffset<String>[] offsets(List<String> streams, ReadOffset readOffset) {
+        return streams.stream().map(stream -> StreamOffset.create(stream, readOffset)).toArray(StreamOffset[]::new);
+    }
+
+    /**
+     * 一批消息在一个事务中下单，提交后一次确认全部消息
+     * @param records
+     */
+    private void handleVoucherOrders(List<MapRecord<String, Object, Object>> records) {
+        long begin = System.currentTimeMillis();
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
         }
+        List<VoucherOrder> created = proxy.createVoucherOrders(voucherOrders);
+        updateOrderStatus(voucherOrders, created);
+        //ack进行确认，按分区分组
+        Map<String, List<RecordId>> ids = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            ids.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        ids.forEach((stream, streamIds) ->
+                stringRedisTemplate.opsForStream().acknowledge(stream, GROUP, streamIds.toArray(new RecordId[0])));
+        batchCount.increment();
+        consumedCount.add(records.size());
+        createdCount.add(created.size());
+        batchMillis.add(System.currentTimeMillis() - begin);
+        createdRate.record(created.size());
     }
+
+    /**
+     * 更新订单状态，没有创建的订单可能是之前已经写入数据库、还没有ack的重复消息，按订单id确认一次
+     */
+    private void updateOrderStatus(List<VoucherOrder> voucherOrders, List<VoucherOrder> created) {
+        Set<Long> createdIds = created.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> persisted = new ArrayList<>(created);
+        List<VoucherOrder> failed = new ArrayList<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!createdIds.contains(voucherOrder.getId())) {
+                failed.add(voucherOrder);
+            }
+        }
+        if (!failed.isEmpty()) {
+            Set<Long> existing = listObjs(new QueryWrapper<VoucherOrder>()
+                    .select("id")
+                    .in("id", failed.stream().map(VoucherOrder::getId).collect(Collectors.toList())))
+                    .stream().map(id -> ((Number) id).longValue()).collect(Collectors.toSet());
+            failed.removeIf(voucherOrder -> {
+                if (existing.contains(voucherOrder.getId())) {
+                    persisted.add(voucherOrder);
+                    return true;
+                }
+                return false;
+            });
+        }
+        orderStatusStore.complete(persisted, OrderStatusStore.PERSISTED);
+        orderStatusStore.complete(failed, OrderStatusStore.FAILED);
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long waitSeconds) {
+        Long userId = UserHolder.getUser().getId();
+        return orderStatusStore.await(orderId, userId, waitSeconds == null ? 0 : waitSeconds);
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        long batches = batchCount.sum();
+        stats.put("order.consumed", consumedCount.sum());
+        stats.put("order.created", createdCount.sum());
+        stats.put("order.batches", batches);
+        stats.put("order.batch.avg.size", batches == 0 ? 0 : consumedCount.sum() / batches);
+        stats.put("order.batch.avg.ms", batches == 0 ? 0 : batchMillis.sum() / batches);
+        stats.put("order.created.per.sec", createdRate.getRate());
+        stats.put("order.claimed", claimedCount.sum());
+        stats.put("order.retries", retryCount.sum());
+        stats.put("order.dead.lettered", deadLetterCount.sum());
+        Long dlqSize = stringRedisTemplate.opsForStream().size(DLQ_STREAM);
+        stats.put("order.dlq.size", dlqSize == null ? 0 : dlqSize);
+        stats.put("order.dlq.replayed", replayedCount.sum());
+        stats.put("order.dlq.discarded", discardedCount.sum());
+        stats.put("order.consumer.threads", (long) consumerThreads);
+        stats.put("order.partitions", (long) Math.max(1, partitions));
+        stats.putAll(soldOutFlags.getStats());
+        stats.putAll(seckillActivator.getStats());
+        stats.putAll(seckillBatcher.getStats());
+        stats.putAll(orderStatusStore.getStats());
+        return stats;
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //本地已经标记售罄，不再访问Redis
+        if (soldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
         long orderId = redisIdWorker.nextId("order");
-        //执行lua脚本，获取结果
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
-        );
+        //秒杀的时间窗口在脚本中判断
+        long now = System.currentTimeMillis();
+        int shards = seckillStockShards.shardsOf(voucherId);
+        Long result;
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        if (shards > 1) {
+            result = seckillSharded(voucherId, userId, orderId, shards, now);
+        } else if (seckillBatcher.isEnabled()) {
+            //和同一个优惠券的并发请求合并成一批执行
+            result = seckillBatcher.admit(voucherId, userId, orderId, streamOf(voucherId, userId),
+                    seckillBuyers.keyOf(orderKey, userId), seckillBuyers.offsetOf(userId));
+        } else {
+            //执行lua脚本，获取结果
+            result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(),String.valueOf(orderId), streamOf(voucherId, userId),
+                    String.valueOf(now),
+                    seckillBuyers.keyOf(orderKey, userId), seckillBuyers.offsetOf(userId),
+                    String.valueOf(orderStatusStore.getTtlSeconds()), seckillBuyers.getDense()
+            );
+        }
+        //批次已经交给Redis但等待超时，返回订单id，由客户端查询订单状态
+        if (result == SeckillBatcher.PENDING) {
+            return Result.ok(orderId);
+        }
+        //库存不足，标记售罄并通知其它节点
+        if (result.intValue() == 1) {
+            soldOutFlags.markSoldOut(voucherId);
+        }
         //看脚本是否为0
         if (result.intValue() != 0) {
-            return Result.fail(result.intValue() == 1 ? "库存不足" : "不能重复下单");
+            return Result.fail(SECKILL_FAILURES[result.intValue()]);
         }
-
-        proxy = (IVoucherOrderService) AopContext.currentProxy();//由于加锁是给this加锁，可能导致事务的锁失效，所以获取代理对象，使用代理对象
         //返回订单id
         return Result.ok(orderId);
     }
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //创建锁对象
-        SimpleRedisLock simpleRedisLock = new SimpleRedisLock(stringRedisTemplate, "order:" + voucherOrder.getUserId());
-        boolean isLock = simpleRedisLock.tryLock(5);
-        if (!isLock) {
-            //失败
-            log.error("不能重复下单");
-            return ;
+
+    /**
+     * 分片库存的秒杀：扣减库存和记录用户之后再写入订单队列，写入失败时归还
+     * @return 和秒杀脚本相同，0成功，1库存不足，2重复下单，3未开始，4已经结束，5没有上线
+     */
+    private Long seckillSharded(Long voucherId, Long userId, long orderId, int shards, long now) {
+        int shard = seckillStockShards.acquire(voucherId, userId, shards, now);
+        if (shard < 0) {
+            //SOLD_OUT ~ NOT_ACTIVE对应脚本的返回值1~5
+            return (long) -shard;
         }
+        Map<String, String> values = new HashMap<>(4);
+        values.put("userId", userId.toString());
+        values.put("voucherId", voucherId.toString());
+        values.put("id", String.valueOf(orderId));
         try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            //释放锁
-            simpleRedisLock.unLock();
+            stringRedisTemplate.opsForStream().add(streamOf(voucherId, userId), values);
+            orderStatusStore.queued(orderId, userId);
+        } catch (Exception e) {
+            seckillStockShards.release(voucherId, userId, shard, shards);
+            throw e;
         }
+        return 0L;
     }
 
 //    @Override
@@ -245,4 +786,70 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //写入数据库
         save(voucherOrder);
     }
+
+    /**
+     * 批量下单：同一张优惠券的订单合并成一次扣减库存，所有订单用多行INSERT写入，在一个事务中完成
+     * 重复投递的消息按(用户, 优惠券)去重，已经下过单的用户跳过
+     * @param voucherOrders
+     * @return 实际创建的订单
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //按优惠券分组，同一个用户只保留一条
+        Map<Long, Map<Long, VoucherOrder>> byVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new LinkedHashMap<>())
+                    .putIfAbsent(voucherOrder.getUserId(), voucherOrder);
+        }
+        List<VoucherOrder> created = new ArrayList<>(voucherOrders.size());
+        for (Map.Entry<Long, Map<Long, VoucherOrder>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            Map<Long, VoucherOrder> byUser = entry.getValue();
+            //查询已经下过单的用户
+            List<Object> bought = listObjs(new QueryWrapper<VoucherOrder>()
+                    .select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .in("user_id", byUser.keySet()));
+            for (Object userId : bought) {
+                log.error("用户已经买了一次, userId={}, voucherId={}", userId, voucherId);
+                byUser.remove(((Number) userId).longValue());
+            }
+            if (byUser.isEmpty()) {
+                continue;
+            }
+            List<VoucherOrder> orders = new ArrayList<>(byUser.values());
+            //一次扣减k个库存
+            boolean success = seckillVoucherService
+                    .update()
+                    .setSql("stock = stock - " + orders.size())
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", orders.size())
+                    .update();
+            if (!success) {
+                //数据库库存少于Redis放行的数量，只创建剩余库存数量的订单
+                SeckillVoucher voucher = seckillVoucherService.query()
+                        .eq("voucher_id", voucherId)
+                        .last("FOR UPDATE")
+                        .one();
+                int stock = voucher == null ? 0 : Math.max(0, voucher.getStock());
+                log.error("库存不足, voucherId={}, 需要{}, 剩余{}", voucherId, orders.size(), stock);
+                if (stock == 0) {
+                    continue;
+                }
+                orders = new ArrayList<>(orders.subList(0, Math.min(stock, orders.size())));
+                seckillVoucherService
+                        .update()
+                        .setSql("stock = stock - " + orders.size())
+                        .eq("voucher_id", voucherId)
+                        .update();
+            }
+            created.addAll(orders);
+        }
+        //写入数据库
+        for (int i = 0; i < created.size(); i += INSERT_BATCH_SIZE) {
+            getBaseMapper().insertBatch(created.subList(i, Math.min(i + INSERT_BATCH_SIZE, created.size())));
+        }
+        return created;
+    }
 }
@@ -7,8 +7,11 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillActivator;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SoldOutFlags;
+import com.hmdp.utils.TransactionUtil;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -29,7 +32,14 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SoldOutFlags soldOutFlags;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillActivator seckillActivator;
+    //新建秒杀券默认的库存分片数
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int defaultStockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -51,7 +61,36 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //同步到Redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY+voucher.getId(), voucher.getStock().toString());
+        //事务提交后记录分片数，库存在开始前由SeckillActivator加载到Redis，即将开始的直接上线
+        int shards = voucher.getStockShards() != null ? voucher.getStockShards() : defaultStockShards;
+        TransactionUtil.afterCommit(() -> {
+            if (shards > 1) {
+                seckillStockShards.setShards(voucher.getId(), shards);
+            }
+            if (seckillActivator.isDue(seckillVoucher)) {
+                seckillActivator.activate(seckillVoucher);
+            }
+        });
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        //事务提交后同步到Redis，并清除所有节点的售罄标记
+        TransactionUtil.afterCommit(() -> {
+            seckillActivator.addStock(voucherId, count);
+            soldOutFlags.clear(voucherId);
+        });
+        return Result.ok();
     }
 }
@@ -0,0 +1,349 @@
+package com.hmdp.utils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 紧凑的二进制格式，不保存字段名
+ * 格式：魔数(1) + 格式版本(1) + 结构版本(4) + 非空字段位图 + 非空字段的值
+ * 结构版本由字段名和字段类型计算，实体类字段变化后旧数据解码返回null，按未命中处理
+ * 不是以魔数开头的数据按JSON解析，兼容迁移前写入的缓存
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    public static final BinaryCacheCodec INSTANCE = new BinaryCacheCodec();
+
+    private static final byte MAGIC = (byte) 0xB7;
+    private static final byte FORMAT_VERSION = 1;
+    private static final JsonCacheCodec JSON_CODEC = new JsonCacheCodec();
+    private static final Map<Class<?>, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+    public static boolean isBinary(byte[] bytes, int offset) {
+        return bytes.length > offset + 1 && bytes[offset] == MAGIC && bytes[offset + 1] == FORMAT_VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schemaOf(value.getClass());
+        if (!schema.supported) {
+            //包含不支持的字段类型，使用JSON
+            return JSON_CODEC.encode(value);
+        }
+        Output out = new Output(128);
+        out.writeByte(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(schema.version);
+        int n = schema.fields.length;
+        Object[] values = new Object[n];
+        byte[] presence = new byte[(n + 7) / 8];
+        try {
+            for (int i = 0; i < n; i++) {
+                values[i] = schema.fields[i].get(value);
+                if (values[i] != null) {
+                    presence[i >>> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        out.writeBytes(presence);
+        for (int i = 0; i < n; i++) {
+            if (values[i] != null) {
+                write(out, schema.types[i], values[i]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        if (!isBinary(bytes, offset)) {
+            return JSON_CODEC.decode(bytes, offset, type);
+        }
+        Input in = new Input(bytes, offset + 2);
+        int version = in.readInt();
+        Schema schema = schemaOf(type);
+        if (!schema.supported || version != schema.version) {
+            //实体类结构已经变化
+            return null;
+        }
+        int n = schema.fields.length;
+        byte[] presence = in.readBytes((n + 7) / 8);
+        try {
+            @SuppressWarnings("unchecked")
+            T result = (T) schema.constructor.newInstance();
+            for (int i = 0; i < n; i++) {
+                if ((presence[i >>> 3] & (1 << (i & 7))) != 0) {
+                    schema.fields[i].set(result, read(in, schema.types[i]));
+                }
+            }
+            return result;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void write(Output out, FieldType type, Object value) {
+        switch (type) {
+            case LONG:
+                out.writeVarLong((Long) value);
+                break;
+            case INT:
+                out.writeVarLong((Integer) value);
+                break;
+            case SHORT:
+                out.writeVarLong((Short) value);
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToRawLongBits((Double) value));
+                break;
+            case FLOAT:
+                out.writeInt(Float.floatToRawIntBits((Float) value));
+                break;
+            case BOOLEAN:
+                out.writeByte((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case STRING:
+                byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+                out.writeVarLong(utf8.length);
+                out.writeBytes(utf8);
+                break;
+            case LOCAL_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(time.getNano());
+                break;
+            default:
+                throw new IllegalStateException("不支持的字段类型: " + type);
+        }
+    }
+
+    private static Object read(Input in, FieldType type) {
+        switch (type) {
+            case LONG:
+                return in.readVarLong();
+            case INT:
+                return (int) in.readVarLong();
+            case SHORT:
+                return (short) in.readVarLong();
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case STRING:
+                int length = (int) in.readVarLong();
+                return new String(in.readBytes(length), StandardCharsets.UTF_8);
+            case LOCAL_DATE_TIME:
+                long epochSecond = in.readVarLong();
+                int nano = (int) in.readVarLong();
+                return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+            default:
+                throw new IllegalStateException("不支持的字段类型: " + type);
+        }
+    }
+
+    private static Schema schemaOf(Class<?> type) {
+        return SCHEMAS.computeIfAbsent(type, Schema::new);
+    }
+
+    private enum FieldType {
+        LONG, INT, SHORT, DOUBLE, FLOAT, BOOLEAN, STRING, LOCAL_DATE_TIME;
+
+        static FieldType of(Class<?> type) {
+            if (type == Long.class || type == long.class) {
+                return LONG;
+            }
+            if (type == Integer.class || type == int.class) {
+                return INT;
+            }
+            if (type == Short.class || type == short.class) {
+                return SHORT;
+            }
+            if (type == Double.class || type == double.class) {
+                return DOUBLE;
+            }
+            if (type == Float.class || type == float.class) {
+                return FLOAT;
+            }
+            if (type == Boolean.class || type == boolean.class) {
+                return BOOLEAN;
+            }
+            if (type == String.class) {
+                return STRING;
+            }
+            if (type == LocalDateTime.class) {
+                return LOCAL_DATE_TIME;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 实体类的字段列表，按字段名排序保证各节点一致
+     */
+    private static class Schema {
+        private final Field[] fields;
+        private final FieldType[] types;
+        private final int version;
+        private final boolean supported;
+        private final Constructor<?> constructor;
+
+        Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            this.types = new FieldType[fields.length];
+            boolean ok = true;
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = FieldType.of(fields[i].getType());
+                if (types[i] == null) {
+                    ok = false;
+                }
+                crc.update((fields[i].getName() + ":" + fields[i].getType().getName() + ";").getBytes(StandardCharsets.UTF_8));
+            }
+            Constructor<?> ctor = null;
+            try {
+                ctor = type.getDeclaredConstructor();
+            } catch (NoSuchMethodException e) {
+                ok = false;
+            }
+            //确认所有字段都支持之后才打开访问权限，不支持的类型走JSON，不需要反射访问
+            if (ok) {
+                for (Field field : fields) {
+                    field.setAccessible(true);
+                }
+                ctor.setAccessible(true);
+            }
+            this.constructor = ctor;
+            this.supported = ok;
+            this.version = (int) crc.getValue();
+        }
+    }
+
+    private static class Output {
+        private byte[] buf;
+        private int pos;
+
+        Output(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int i = 3; i >= 0; i--) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        /**
+         * zigzag变长编码，小的数只占1~2个字节
+         */
+        void writeVarLong(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        byte[] readBytes(int n) {
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return bytes;
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+    }
+}
@@ -1,37 +1,117 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 @Component
 @Slf4j
 public class CacheClientUtil {
+    //空对象，解决缓存穿透
+    private static final byte[] NULL_VALUE = new byte[0];
+    //本地缓存中的空对象，只有热点key才会缓存
+    private static final Object NULL_PLACEHOLDER = new Object();
+    //逻辑过期缓存中读到的空对象
+    private static final RedisData<Object> NULL_DATA = new RedisData<>();
     private StringRedisTemplate stringRedisTemplate;
+    //缓存数据按字节读写，格式由codec决定
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+    private CacheCodec cacheCodec;
+    //本地一级缓存
+    private LocalCache localCache;
+    //同一个key的并发重建合并
+    private SingleFlight singleFlight;
+    //逻辑过期缓存的重建调度器
+    private CacheRefreshScheduler refreshScheduler;
+    //热点key探测，热点key的空对象也放入本地缓存
+    private HotKeyDetector hotKeyDetector;
+    private final long hotLocalTtlMillis;
+    //Redis二级缓存的命中统计
+    private final LongAdder l2HitCount = new LongAdder();
+    private final LongAdder l2MissCount = new LongAdder();
+    //过期时间随机增加的比例，避免同时写入的key同时过期
+    private final double ttlJitter;
+    //XFetch提前重建的系数，越大越早重建，0表示关闭
+    private final double xfetchBeta;
+    private final LongAdder earlyRefreshCount = new LongAdder();
 
-    public CacheClientUtil(StringRedisTemplate stringRedisTemplate) {
+    public CacheClientUtil(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                           CacheCodec cacheCodec, LocalCache localCache, SingleFlight singleFlight,
+                           CacheRefreshScheduler refreshScheduler, HotKeyDetector hotKeyDetector,
+                           @Value("${hmdp.cache.ttl-jitter:0.1}") double ttlJitter,
+                           @Value("${hmdp.cache.xfetch-beta:1.0}") double xfetchBeta,
+                           @Value("${hmdp.hotkey.local-ttl-millis:2000}") long hotLocalTtlMillis) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.cacheCodec = cacheCodec;
+        this.localCache = localCache;
+        this.singleFlight = singleFlight;
+        this.refreshScheduler = refreshScheduler;
+        this.hotKeyDetector = hotKeyDetector;
+        this.hotLocalTtlMillis = hotLocalTtlMillis;
+        this.ttlJitter = ttlJitter;
+        this.xfetchBeta = xfetchBeta;
     }
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        cacheRedisTemplate.opsForValue().set(key, cacheCodec.encode(value),jitter(time, unit),TimeUnit.MILLISECONDS);
+        //删除所有节点的本地副本，下次查询时重新加载
+        localCache.invalidate(key);
+        localCache.broadcastInvalidate(key);
     }
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 写入逻辑过期数据，同时记录本次重建的耗时，用于XFetch提前重建
+     * @param rebuildCost 重建耗时(毫秒)，未知时为null
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long rebuildCost){
         //添加逻辑过期时间进行封装
         RedisData<Object> redisData = new RedisData<>();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        redisData.setExpireTime(LocalDateTime.now().plus(jitter(time, unit), ChronoUnit.MILLIS));
+        redisData.setRebuildCost(rebuildCost);
+        //过期时间写在固定长度的头部，数据部分使用codec编码
+        byte[] bytes = CacheEnvelope.wrap(cacheCodec.encode(value), toEpochMilli(redisData.getExpireTime()), rebuildCost);
+        cacheRedisTemplate.opsForValue().set(key, bytes);
+        //当前节点直接更新本地缓存，其它节点删除旧副本
+        localCache.put(key, redisData);
+        localCache.broadcastInvalidate(key);
+    }
+
+    /**
+     * 删除缓存，同时删除所有节点的本地副本
+     * @param key
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        localCache.broadcastInvalidate(key);
     }
 
     /**
@@ -41,31 +121,200 @@ public class CacheClientUtil {
      */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix+id;
-        //首先到redis中查询是否有
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //表示存在，直接返回
-             return JSONUtil.toBean(json, type);
-        }
-        //不存在，看看是否命中的是空字符串""
-        if (json!=null){
+        //首先查询本地缓存
+        Object cached = localCache.get(key);
+        if (cached == NULL_PLACEHOLDER) {
             return null;
         }
+        //同一个key可能被逻辑过期方式写入RedisData，类型不同按未命中处理
+        if (type.isInstance(cached)) {
+            return type.cast(cached);
+        }
+        //然后到redis中查询是否有
+        byte[] bytes = readRedis(key);
+        //判断是否存在，空数组是空对象
+        if (bytes != null) {
+            //表示存在，放入本地缓存后返回；无法解码时按未命中处理
+            l2HitCount.increment();
+            R r = decodeAndCache(key, bytes, type);
+            if (r != null || bytes.length == 0) {
+                return r;
+            }
+        } else {
+            l2MissCount.increment();
+        }
         //不存在，直接到数据库中查询
         R r = dbFallback.apply(id);
         if (r == null){
             //为了解决缓存穿透问题，在Redis中写入空对象
-            stringRedisTemplate.opsForValue().set(key,"",time,unit);
+            cacheRedisTemplate.opsForValue().set(key,NULL_VALUE,
+                    jitter(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES),TimeUnit.MILLISECONDS);
             return null;
         }
-        //存在，写入Redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(r),time,unit);
+        //存在，写入Redis和本地缓存
+        cacheRedisTemplate.opsForValue().set(key,cacheCodec.encode(r),jitter(time, unit),TimeUnit.MILLISECONDS);
+        localCache.put(key, r);
         return r;
     }
 
-    //创建线程池
-    private static final ExecutorService CACHE_REBUID_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 缓存穿透解决方案，先用布隆过滤器拦截一定不存在的id，不访问Redis和数据库
+     * @param id
+     * @return
+     */
+    public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit, RedisBloomFilter bloomFilter){
+        if (!bloomFilter.mightContain(id)) {
+            return null;
+        }
+        return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit);
+    }
+
+    /**
+     * 基于互斥锁解决缓存击穿
+     * 同一个JVM内同一个key的并发未命中合并为一次加载；多个节点之间只有拿到Redis锁的节点查询数据库，
+     * 其它节点等待重建完成的通知后重新读取Redis
+     * @param id
+     * @return
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix+id;
+        //首先查询本地缓存
+        Object cached = localCache.get(key);
+        if (cached == NULL_PLACEHOLDER) {
+            return null;
+        }
+        //同一个key可能被逻辑过期方式写入RedisData，类型不同按未命中处理
+        if (type.isInstance(cached)) {
+            return type.cast(cached);
+        }
+        //然后到redis中查询是否有，空数组是解决缓存穿透设置的缓存空对象
+        byte[] bytes = readRedis(key);
+        if (bytes != null) {
+            l2HitCount.increment();
+            R r = decodeAndCache(key, bytes, type);
+            if (r != null || bytes.length == 0) {
+                return r;
+            }
+        } else {
+            l2MissCount.increment();
+        }
+        //不存在，同一个key只让一个线程去重建，其它线程共享结果
+        return singleFlight.execute(key, () -> rebuildWithMutex(key, id, type, dbFallback, time, unit));
+    }
+
+    /**
+     * 获取互斥锁重建缓存，没有获取到锁则等待持有锁的节点重建完成的通知
+     */
+    private <R,ID> R rebuildWithMutex(String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RedisConstants.LOCK_SHOP_TTL);
+        while (System.currentTimeMillis() < deadline) {
+            //先注册等待，再检查缓存和锁，避免错过重建完成的通知
+            CompletableFuture<Void> waiter = singleFlight.registerRemoteWait(key);
+            byte[] bytes = readRedis(key);
+            R cachedValue = bytes == null ? null : decodeAndCache(key, bytes, type);
+            if (cachedValue != null || (bytes != null && bytes.length == 0)) {
+                //已经被其它节点重建
+                singleFlight.cancelRemoteWait(key, waiter);
+                return cachedValue;
+            }
+            if (tryLock(lockKey)) {
+                singleFlight.cancelRemoteWait(key, waiter);
+                try {
+                    //获取锁成功，二次检查缓存
+                    bytes = readRedis(key);
+                    cachedValue = bytes == null ? null : decodeAndCache(key, bytes, type);
+                    if (cachedValue != null || (bytes != null && bytes.length == 0)) {
+                        return cachedValue;
+                    }
+                    //不存在，则调用数据库
+                    R r = dbFallback.apply(id);
+                    if (r == null) {
+                        //为了解决缓存穿透问题，在Redis中写入空对象
+                        cacheRedisTemplate.opsForValue().set(key, NULL_VALUE,
+                                jitter(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES), TimeUnit.MILLISECONDS);
+                        return null;
+                    }
+                    //存在，写入Redis和本地缓存
+                    cacheRedisTemplate.opsForValue().set(key, cacheCodec.encode(r), jitter(time, unit), TimeUnit.MILLISECONDS);
+                    localCache.put(key, r);
+                    return r;
+                } finally {
+                    //释放互斥锁，并唤醒其它节点上等待的线程
+                    unLock(lockKey);
+                    singleFlight.publishRebuilt(key);
+                }
+            }
+            //其它节点正在重建，等待通知，锁的持有者宕机时等到锁过期后重新竞争
+            singleFlight.awaitRemote(key, waiter, deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        //等待超时，直接查询数据库，不写缓存
+        log.warn("等待缓存重建超时, key={}", key);
+        return dbFallback.apply(id);
+    }
+
+    /**
+     * 解析Redis中的缓存，空数组表示缓存的空对象；带过期时间头部的数据跳过头部解码
+     * @return 空对象或者无法解码时返回null，无法解码的数据不放入本地缓存
+     */
+    private <R> R decodeAndCache(String key, byte[] bytes, Class<R> type){
+        if (bytes.length == 0) {
+            //热点key的空对象短时间缓存在本地，避免不存在的热点数据一直访问Redis
+            if (hotKeyDetector.isHot(key)) {
+                localCache.put(key, NULL_PLACEHOLDER, hotLocalTtlMillis);
+            }
+            return null;
+        }
+        int offset = CacheEnvelope.isEnvelope(bytes) ? CacheEnvelope.HEADER_LENGTH : 0;
+        R r = cacheCodec.decode(bytes, offset, type);
+        if (r != null) {
+            localCache.put(key, r);
+        }
+        return r;
+    }
+
+    /**
+     * 读取Redis，同时记录访问次数用于热点探测
+     */
+    private byte[] readRedis(String key){
+        hotKeyDetector.record(key);
+        return cacheRedisTemplate.opsForValue().get(key);
+    }
+
+    /**
+     * 在过期时间上增加[0, ttlJitter)比例的随机时间
+     * @return 毫秒
+     */
+    private long jitter(Long time, TimeUnit unit){
+        long millis = unit.toMillis(time);
+        if (ttlJitter <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * XFetch概率提前重建：now - cost * beta * ln(rand) >= expireTime 时重建
+     * 越接近过期、重建耗时越长，提前重建的概率越大，重建压力被分散到过期之前
+     */
+    private boolean shouldRefreshEarly(RedisData<?> redisData, LocalDateTime now){
+        if (xfetchBeta <= 0) {
+            return false;
+        }
+        //没有记录耗时的数据(例如预热写入的)，使用平均重建耗时
+        Long cost = redisData.getRebuildCost();
+        long delta = cost != null ? cost : refreshScheduler.getAverageRebuildMillis();
+        if (delta <= 0) {
+            return false;
+        }
+        double gap = -delta * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        boolean early = !now.plus((long) gap, ChronoUnit.MILLIS).isBefore(redisData.getExpireTime());
+        if (early) {
+            earlyRefreshCount.increment();
+        }
+        return early;
+    }
+
     /**
      * 获取锁
      * @param key
@@ -91,57 +340,313 @@ public class CacheClientUtil {
      */
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix+id;
-        //首先到redis中查询是否有
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //判断是否存在
-        if (StrUtil.isBlank(shopJson)) {
-            //表示不存在，返回空
+        //首先查询本地缓存，未命中再到redis中查询
+        RedisData<R> redisData = getLogicalData(key, type);
+        //缓存的空对象，数据不存在
+        if (redisData == (Object) NULL_DATA) {
             return null;
         }
+        //不存在(还没有预热或者更新后已被删除)，或者实体类结构已经变化导致旧数据无法解码，同步重建
+        if (redisData == null || redisData.getData() == null) {
+            return singleFlight.execute(key, () -> {
+                long begin = System.currentTimeMillis();
+                R r1 = dbFallback.apply(id);
+                if (r1 == null) {
+                    //为了解决缓存穿透问题，在Redis中写入空对象
+                    cacheRedisTemplate.opsForValue().set(key, NULL_VALUE,
+                            jitter(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES), TimeUnit.MILLISECONDS);
+                    return null;
+                }
+                setWithLogicalExpire(key, r1, time, unit, System.currentTimeMillis() - begin);
+                return r1;
+            });
+        }
         //命中，判断是否逻辑过期
-        RedisData shopRedisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject shopJsonObject = (JSONObject) shopRedisData.getData();
-        R r = JSONUtil.toBean(shopJsonObject,type);
-        LocalDateTime expireTime = shopRedisData.getExpireTime();
-        //如果没有过期，直接返回商铺信息
-        if(expireTime.isAfter(LocalDateTime.now())){
+        return refreshIfNeeded(key, id, redisData, type, dbFallback, time, unit);
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存：先查本地缓存，再一次MGET，未命中的id一次批量查询数据库，最后一次pipeline写回
+     * 数据库中也不存在的id和queryWithPassThrough一样写入空对象，已经缓存了空对象的id不再查询数据库
+     * @param batchDbFallback 根据id集合批量查询数据库，返回id到数据的映射
+     * @return 按ids的顺序返回，不存在的id跳过
+     */
+    @SuppressWarnings("unchecked")
+    public <R,ID> List<R> getAll(String keyPrefix, List<ID> ids, Class<R> type,
+                                 Function<Collection<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit){
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //过期数据单个重建时使用
+        Function<ID, R> dbFallback = id -> {
+            Map<ID, R> loaded = batchDbFallback.apply(Collections.singletonList(id));
+            return loaded == null ? null : loaded.get(id);
+        };
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        //首先查询本地缓存
+        List<ID> redisIds = new ArrayList<>();
+        List<String> redisKeys = new ArrayList<>();
+        for (ID id : ids) {
+            String key = keyPrefix + id;
+            Object cached = localCache.get(key);
+            if (cached == NULL_PLACEHOLDER) {
+                continue;
+            }
+            if (isLogicalData(cached, type)) {
+                found.put(id, refreshIfNeeded(key, id, (RedisData<R>) cached, type, dbFallback, time, unit));
+            } else {
+                redisIds.add(id);
+                redisKeys.add(key);
+            }
+        }
+        //本地未命中的一次MGET
+        List<ID> missIds = new ArrayList<>();
+        if (!redisKeys.isEmpty()) {
+            redisKeys.forEach(hotKeyDetector::record);
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(redisKeys);
+            for (int i = 0; i < redisKeys.size(); i++) {
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes == null) {
+                    l2MissCount.increment();
+                    missIds.add(redisIds.get(i));
+                    continue;
+                }
+                l2HitCount.increment();
+                if (bytes.length == 0) {
+                    //缓存的空对象，不存在的数据不访问数据库
+                    decodeAndCache(redisKeys.get(i), bytes, type);
+                    continue;
+                }
+                RedisData<R> redisData = toRedisData(bytes, type);
+                if (redisData.getData() == null) {
+                    //无法解码的旧数据，按未命中处理
+                    missIds.add(redisIds.get(i));
+                    continue;
+                }
+                localCache.put(redisKeys.get(i), redisData);
+                found.put(redisIds.get(i), refreshIfNeeded(redisKeys.get(i), redisIds.get(i), redisData, type, dbFallback, time, unit));
+            }
+        }
+        //Redis未命中的一次批量查询数据库，再一次写回
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = batchDbFallback.apply(missIds);
+            if (loaded == null) {
+                loaded = Collections.emptyMap();
+            }
+            Map<String, Object> keyValues = new HashMap<>(loaded.size() * 2);
+            loaded.forEach((id, r) -> keyValues.put(keyPrefix + id, r));
+            //为了解决缓存穿透问题，数据库中不存在的id在同一个pipeline中写入空对象
+            List<String> nullKeys = new ArrayList<>();
+            for (ID id : missIds) {
+                if (!loaded.containsKey(id)) {
+                    nullKeys.add(keyPrefix + id);
+                }
+            }
+            setAllWithLogicalExpire(keyValues, nullKeys, time, unit, true);
+            found.putAll(loaded);
+        }
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 使用一次pipeline批量写入逻辑过期数据
+     * @param keyValues key到数据的映射
+     */
+    public void setAllWithLogicalExpire(Map<String, ?> keyValues, Long time, TimeUnit unit){
+        setAllWithLogicalExpire(keyValues, time, unit, true);
+    }
+
+    /**
+     * 使用一次pipeline批量写入逻辑过期数据
+     * @param keyValues key到数据的映射
+     * @param fillLocal 是否同时写入本地缓存，批量预热时不写入，避免挤掉热点数据
+     */
+    public void setAllWithLogicalExpire(Map<String, ?> keyValues, Long time, TimeUnit unit, boolean fillLocal){
+        setAllWithLogicalExpire(keyValues, Collections.emptyList(), time, unit, fillLocal);
+    }
+
+    /**
+     * 使用一次pipeline批量写入逻辑过期数据和空对象
+     * @param nullKeys 写入空对象的key，过期时间和单个查询的空对象相同
+     */
+    private void setAllWithLogicalExpire(Map<String, ?> keyValues, Collection<String> nullKeys, Long time, TimeUnit unit, boolean fillLocal){
+        if (keyValues.isEmpty() && nullKeys.isEmpty()) {
+            return;
+        }
+        Map<String, RedisData<Object>> datas = new HashMap<>(keyValues.size() * 2);
+        Map<byte[], byte[]> raw = new HashMap<>(keyValues.size() * 2);
+        keyValues.forEach((key, value) -> {
+            RedisData<Object> redisData = new RedisData<>();
+            redisData.setData(value);
+            redisData.setExpireTime(LocalDateTime.now().plus(jitter(time, unit), ChronoUnit.MILLIS));
+            datas.put(key, redisData);
+            raw.put(key.getBytes(StandardCharsets.UTF_8),
+                    CacheEnvelope.wrap(cacheCodec.encode(value), toEpochMilli(redisData.getExpireTime()), null));
+        });
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            raw.forEach(connection::set);
+            for (String key : nullKeys) {
+                connection.pSetEx(key.getBytes(StandardCharsets.UTF_8),
+                        jitter(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES), NULL_VALUE);
+            }
+            return null;
+        });
+        if (fillLocal) {
+            datas.forEach(localCache::put);
+        }
+    }
+
+    /**
+     * 判断逻辑过期数据是否需要重建，需要时交给重建调度器在后台重建
+     * @return 当前可以返回的数据，重建期间返回旧数据
+     */
+    private <R,ID> R refreshIfNeeded(String key, ID id, RedisData<R> redisData, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        R r = redisData.getData();
+        LocalDateTime now = LocalDateTime.now();
+        //如果没有过期，并且没有命中提前重建，直接返回商铺信息
+        if(redisData.getExpireTime().isAfter(now) && !shouldRefreshEarly(redisData, now)){
             //表示没有过期
             return r;
         }
-        //如果过期，获取互斥锁，开启独立线程进行缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
+        //需要重建，并且当前节点已经在排队重建，不需要再获取锁
+        if (refreshScheduler.touch(key)) {
+            return r;
+        }
+        //获取互斥锁，交给重建调度器进行缓存重建
+        String lockKey = RedisConstants.LOCK_CACHE_KEY+key;
         boolean isLock = tryLock(lockKey);
         //判断互斥锁是否可以获取成功
         if (isLock){
             //成功进行缓存的重建
-            //开启独立的线程，但是在开启独立线程之前，要进行Redis数据的双重检验
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            //命中，判断是否逻辑过期
-            shopRedisData = JSONUtil.toBean(shopJson, RedisData.class);
-            shopJsonObject = (JSONObject) shopRedisData.getData();
-            r = JSONUtil.toBean(shopJsonObject, type);
-            expireTime = shopRedisData.getExpireTime();
-            //如果没有过期，直接返回商铺信息
-            if(expireTime.isAfter(LocalDateTime.now())){
-                //表示没有过期
+            //开启独立的线程，但是在开启独立线程之前，要进行Redis数据的双重检验，本地副本可能已经落后
+            byte[] bytes = readRedis(key);
+            //过期时间比读到的晚，说明其它节点已经重建，更新本地缓存后返回
+            if (bytes != null && bytes.length > 0
+                    && expireTimeOf(bytes).isAfter(redisData.getExpireTime())) {
+                unLock(lockKey);
+                RedisData<R> latest = toRedisData(bytes, type);
+                if (latest.getData() != null) {
+                    localCache.put(key, latest);
+                    return latest.getData();
+                }
                 return r;
             }
-            //过期了，则获取一个线程进行重建
-            CACHE_REBUID_EXECUTOR.submit(()-> {
-                R r1 = null;
-                try {
-                    r1 = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(lockKey);
-                    return r1;
+            //过期了，提交重建任务，任务结束后释放锁
+            boolean scheduled = refreshScheduler.submit(key, () -> {
+                long begin = System.currentTimeMillis();
+                R r1 = dbFallback.apply(id);
+                if (r1 == null) {
+                    //数据已经被删除
+                    delete(key);
+                    return;
                 }
-            });
+                this.setWithLogicalExpire(key, r1, time, unit, System.currentTimeMillis() - begin);
+            }, () -> unLock(lockKey));
+            if (!scheduled) {
+                //队列已满，释放锁，继续使用旧数据
+                unLock(lockKey);
+            }
         }
         //不成功则返回旧的缓存信息
         return r;
     }
+
+    /**
+     * 先查本地缓存再查Redis，读取逻辑过期的缓存数据
+     * @param key
+     * @param type
+     * @return 不存在返回null，空对象返回NULL_DATA
+     */
+    @SuppressWarnings("unchecked")
+    private <R> RedisData<R> getLogicalData(String key, Class<R> type){
+        Object cached = localCache.get(key);
+        if (isLogicalData(cached, type)) {
+            return (RedisData<R>) cached;
+        }
+        byte[] bytes = readRedis(key);
+        if (bytes == null) {
+            l2MissCount.increment();
+            return null;
+        }
+        l2HitCount.increment();
+        if (bytes.length == 0) {
+            return (RedisData<R>) (RedisData<?>) NULL_DATA;
+        }
+        RedisData<R> redisData = toRedisData(bytes, type);
+        //实体类结构变化导致无法解码的数据不放入本地缓存
+        if (redisData.getData() != null) {
+            localCache.put(key, redisData);
+        }
+        return redisData;
+    }
+
+    /**
+     * 本地缓存中是否是这个类型的逻辑过期数据，同一个key被其它方式写入时按未命中处理
+     */
+    private static boolean isLogicalData(Object cached, Class<?> type){
+        return cached instanceof RedisData && type.isInstance(((RedisData<?>) cached).getData());
+    }
+
+    /**
+     * 解析Redis中的逻辑过期数据，兼容迁移前整体写成JSON的RedisData
+     * @param bytes
+     * @param type
+     * @return 数据无法解码时data为null
+     */
+    private <R> RedisData<R> toRedisData(byte[] bytes, Class<R> type){
+        RedisData<R> redisData = new RedisData<>();
+        if (CacheEnvelope.isEnvelope(bytes)) {
+            redisData.setExpireTime(toLocalDateTime(CacheEnvelope.expireMillis(bytes)));
+            redisData.setRebuildCost(CacheEnvelope.rebuildCost(bytes));
+            redisData.setData(cacheCodec.decode(bytes, CacheEnvelope.HEADER_LENGTH, type));
+            return redisData;
+        }
+        RedisData<?> raw = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        redisData.setExpireTime(raw.getExpireTime());
+        redisData.setRebuildCost(raw.getRebuildCost());
+        redisData.setData(JSONUtil.toBean((JSONObject) raw.getData(), type));
+        return redisData;
+    }
+
+    /**
+     * 只读取逻辑过期时间，新格式不需要解码数据
+     */
+    private LocalDateTime expireTimeOf(byte[] bytes){
+        if (CacheEnvelope.isEnvelope(bytes)) {
+            return toLocalDateTime(CacheEnvelope.expireMillis(bytes));
+        }
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class).getExpireTime();
+    }
+
+    private static long toEpochMilli(LocalDateTime time){
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toLocalDateTime(long epochMilli){
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
+    }
+
+    /**
+     * 每一级缓存的命中统计
+     * @return
+     */
+    public Map<String, Long> getStats(){
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("l1.hit", localCache.getHitCount());
+        stats.put("l1.miss", localCache.getMissCount());
+        stats.put("l1.size", (long) localCache.size());
+        stats.put("l2.hit", l2HitCount.sum());
+        stats.put("l2.miss", l2MissCount.sum());
+        stats.put("xfetch.early", earlyRefreshCount.sum());
+        stats.putAll(singleFlight.getStats());
+        stats.putAll(refreshScheduler.getStats());
+        return stats;
+    }
 }
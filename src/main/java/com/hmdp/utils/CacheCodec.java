@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存对象的编解码
+ */
+public interface CacheCodec {
+    /**
+     * 编码
+     * @param value
+     * @return
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 从offset开始解码
+     * @param bytes
+     * @param offset
+     * @param type
+     * @return 格式不兼容时返回null
+     */
+    <T> T decode(byte[] bytes, int offset, Class<T> type);
+}
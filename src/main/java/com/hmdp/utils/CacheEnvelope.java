@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 逻辑过期数据在Redis中的格式：魔数(1) + 版本(1) + 逻辑过期时间戳毫秒(8) + 重建耗时毫秒(8) + 数据
+ * 过期时间在固定位置，不需要解码数据就可以判断是否过期
+ */
+public class CacheEnvelope {
+    private static final byte MAGIC = (byte) 0xB8;
+    private static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 18;
+
+    private CacheEnvelope() {
+    }
+
+    public static byte[] wrap(byte[] body, long expireMillis, Long rebuildCost) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        buffer.putLong(expireMillis);
+        buffer.putLong(rebuildCost == null ? -1 : rebuildCost);
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    /**
+     * 是否是这个格式，迁移前写入的是JSON
+     */
+    public static boolean isEnvelope(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC && bytes[1] == VERSION;
+    }
+
+    public static long expireMillis(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, 2, 8).getLong();
+    }
+
+    /**
+     * @return 未记录时返回null
+     */
+    public static Long rebuildCost(byte[] bytes) {
+        long cost = ByteBuffer.wrap(bytes, 10, 8).getLong();
+        return cost < 0 ? null : cost;
+    }
+}
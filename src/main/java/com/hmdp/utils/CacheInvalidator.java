@@ -0,0 +1,343 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 可靠的缓存删除：数据库事务提交后立即删除一次缓存，并把删除任务写入Redis Stream，
+ * 延迟一段时间后再删除一次，覆盖并发读在提交前读到旧数据、提交后写回缓存的情况；
+ * 第二次删除成功才确认消息，失败的消息留在pending list中按指数退避重试，节点宕机后由其它节点认领
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+    private static final String GROUP = "g1";
+    private static final String CONSUMER = UUID.randomUUID().toString(true);
+    //一次XPENDING读取的pending消息数
+    private static final int PENDING_PAGE_SIZE = 100;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheClientUtil cacheClientUtil;
+    //第二次删除的延迟，要大于一次缓存重建的耗时
+    private final long delayMillis;
+    private final long retryBaseMillis;
+    private final long retryMaxMillis;
+    private final int maxAttempts;
+    private final long deadConsumerMillis;
+    private final ScheduledExecutorService executor;
+    private volatile long lastCleanupMillis;
+    private volatile boolean running = true;
+
+    private final LongAdder enqueuedCount = new LongAdder();
+    private final LongAdder deletedCount = new LongAdder();
+    private final LongAdder retriedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    //事务提交到第二次删除成功的时间
+    private final LongAdder lagMillis = new LongAdder();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    public CacheInvalidator(StringRedisTemplate stringRedisTemplate, CacheClientUtil cacheClientUtil,
+                            @Value("${hmdp.cache.invalidate.delay-millis:1000}") long delayMillis,
+                            @Value("${hmdp.cache.invalidate.retry-base-millis:500}") long retryBaseMillis,
+                            @Value("${hmdp.cache.invalidate.retry-max-millis:60000}") long retryMaxMillis,
+                            @Value("${hmdp.cache.invalidate.max-attempts:10}") int maxAttempts,
+                            @Value("${hmdp.cache.invalidate.dead-consumer-seconds:3600}") long deadConsumerSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheClientUtil = cacheClientUtil;
+        this.delayMillis = delayMillis;
+        this.retryBaseMillis = retryBaseMillis;
+        this.retryMaxMillis = retryMaxMillis;
+        this.maxAttempts = maxAttempts;
+        this.deadConsumerMillis = TimeUnit.SECONDS.toMillis(deadConsumerSeconds);
+        //一个线程消费队列，一个线程执行本地重试
+        this.executor = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "cache-invalidator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void init() {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(RedisConstants.CACHE_INVALIDATE_STREAM, ReadOffset.from("0"), GROUP);
+        } catch (Exception e) {
+            //消费者组已经存在
+            log.debug("缓存删除队列的消费者组已存在");
+        }
+        executor.execute(this::consume);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        executor.shutdownNow();
+    }
+
+    /**
+     * 在当前事务提交后删除缓存，没有事务时立即删除
+     * @param key
+     */
+    public void invalidateAfterCommit(String key) {
+        TransactionUtil.afterCommit(() -> invalidate(key));
+    }
+
+    /**
+     * 先记录删除任务，再立即删除一次
+     * @param key
+     */
+    public void invalidate(String key) {
+        long committedAt = System.currentTimeMillis();
+        try {
+            Map<String, String> values = new HashMap<>(2);
+            values.put("key", key);
+            values.put("time", String.valueOf(committedAt));
+            stringRedisTemplate.opsForStream().add(RedisConstants.CACHE_INVALIDATE_STREAM, values);
+            enqueuedCount.increment();
+        } catch (Exception e) {
+            //Redis不可用时记录不了任务，由本地线程按退避时间重试
+            log.error("记录缓存删除任务失败, key={}", key, e);
+            scheduleLocalRetry(key, committedAt, 1);
+            return;
+        }
+        try {
+            cacheClientUtil.delete(key);
+        } catch (Exception e) {
+            //第一次删除失败不影响，队列中的任务会再删除
+            log.warn("删除缓存失败，等待延迟删除, key={}", key, e);
+        }
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("invalidate.enqueued", enqueuedCount.sum());
+        stats.put("invalidate.deleted", deletedCount.sum());
+        stats.put("invalidate.retried", retriedCount.sum());
+        stats.put("invalidate.failed", failedCount.sum());
+        long deleted = deletedCount.sum();
+        stats.put("invalidate.lag.avg.ms", deleted == 0 ? 0 : lagMillis.sum() / deleted);
+        stats.put("invalidate.lag.max.ms", maxLagMillis.get());
+        return stats;
+    }
+
+    /**
+     * 消费新的删除任务，每一轮之后检查需要重试的任务
+     */
+    private void consume() {
+        while (running) {
+            try {
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP, CONSUMER),
+                        StreamReadOptions.empty().count(100).block(Duration.ofSeconds(1)),
+                        StreamOffset.create(RedisConstants.CACHE_INVALIDATE_STREAM, ReadOffset.lastConsumed())
+                );
+                if (list != null) {
+                    for (MapRecord<String, Object, Object> record : list) {
+                        //消息按时间顺序，等到第一条到期就可以依次处理
+                        long wait = timeOf(record) + delayMillis - System.currentTimeMillis();
+                        if (wait > 0) {
+                            Thread.sleep(wait);
+                        }
+                        handle(record);
+                    }
+                }
+                retryPending();
+                removeDeadConsumers();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("处理缓存删除任务异常", e);
+                try {
+                    Thread.sleep(retryBaseMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * pending list中空闲时间超过退避时间的任务重新删除，包括其它宕机节点未确认的任务
+     * 按id分页遍历整个pending list，前面的任务一直失败时不会挡住后面的任务
+     */
+    private void retryPending() {
+        Range<String> range = Range.unbounded();
+        while (running) {
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    RedisConstants.CACHE_INVALIDATE_STREAM, GROUP, range, PENDING_PAGE_SIZE);
+            if (pending.isEmpty()) {
+                return;
+            }
+            retryPending(pending);
+            if (pending.size() < PENDING_PAGE_SIZE) {
+                return;
+            }
+            //下一页从这一页最后一条之后开始
+            String lastId = pending.get(pending.size() - 1).getIdAsString();
+            range = Range.rightUnbounded(Range.Bound.exclusive(lastId));
+        }
+    }
+
+    private void retryPending(PendingMessages pending) {
+        for (PendingMessage message : pending) {
+            long deliveries = message.getTotalDeliveryCount();
+            //其它节点可能还在等待延迟时间，空闲时间要超过延迟时间加上退避时间
+            long minIdle = delayMillis + backoff(deliveries);
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() < minIdle) {
+                continue;
+            }
+            List<MapRecord<String, Object, Object>> claimed = claim(message.getId(), minIdle);
+            for (MapRecord<String, Object, Object> record : claimed) {
+                if (deliveries >= maxAttempts) {
+                    //多次重试仍然失败，放弃，缓存最多保留到过期时间
+                    failedCount.increment();
+                    log.error("缓存删除重试{}次仍然失败，放弃, key={}", deliveries, record.getValue().get("key"));
+                    ack(record.getId());
+                    continue;
+                }
+                retriedCount.increment();
+                handle(record);
+            }
+        }
+    }
+
+    /**
+     * StreamOperations没有XCLAIM，使用连接上的命令；其它节点已经认领时返回空列表
+     */
+    private List<MapRecord<String, Object, Object>> claim(RecordId id, long minIdle) {
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(
+                        RedisConstants.CACHE_INVALIDATE_STREAM.getBytes(StandardCharsets.UTF_8), GROUP, CONSUMER,
+                        RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(minIdle)).ids(id)));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> claimed = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            Map<Object, Object> values = new HashMap<>();
+            record.getValue().forEach((k, v) -> values.put(
+                    new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            claimed.add(StreamRecords.newRecord().in(RedisConstants.CACHE_INVALIDATE_STREAM)
+                    .withId(record.getId()).ofMap(values));
+        }
+        return claimed;
+    }
+
+    /**
+     * 每次重启都会产生新的消费者名称，长时间空闲并且没有pending消息的消费者从消费者组中删除
+     * 和订单队列的处理相同，每分钟最多检查一次
+     */
+    private void removeDeadConsumers() {
+        long now = System.currentTimeMillis();
+        if (now - lastCleanupMillis < TimeUnit.MINUTES.toMillis(1)) {
+            return;
+        }
+        lastCleanupMillis = now;
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(
+                RedisConstants.CACHE_INVALIDATE_STREAM, GROUP);
+        consumers.forEach(consumer -> {
+            if (!CONSUMER.equals(consumer.consumerName())
+                    && consumer.pendingCount() == 0 && consumer.idleTimeMs() > deadConsumerMillis) {
+                stringRedisTemplate.opsForStream().deleteConsumer(RedisConstants.CACHE_INVALIDATE_STREAM,
+                        Consumer.from(GROUP, consumer.consumerName()));
+                log.info("删除空闲的缓存删除消费者{}", consumer.consumerName());
+            }
+        });
+    }
+
+    /**
+     * 第二次删除，成功后确认并删除消息；失败时消息留在pending list等待重试
+     */
+    private void handle(MapRecord<String, Object, Object> record) {
+        String key = (String) record.getValue().get("key");
+        try {
+            cacheClientUtil.delete(key);
+        } catch (Exception e) {
+            log.warn("延迟删除缓存失败，等待重试, key={}", key, e);
+            return;
+        }
+        ack(record.getId());
+        recordLag(timeOf(record));
+    }
+
+    private void ack(RecordId id) {
+        stringRedisTemplate.opsForStream().acknowledge(RedisConstants.CACHE_INVALIDATE_STREAM, GROUP, id);
+        stringRedisTemplate.opsForStream().delete(RedisConstants.CACHE_INVALIDATE_STREAM, id);
+    }
+
+    /**
+     * Redis不可用时，在本地按退避时间重试整个删除流程
+     */
+    private void scheduleLocalRetry(String key, long committedAt, int attempt) {
+        if (attempt > maxAttempts) {
+            failedCount.increment();
+            log.error("缓存删除重试{}次仍然失败，放弃, key={}", maxAttempts, key);
+            return;
+        }
+        executor.schedule(() -> {
+            retriedCount.increment();
+            try {
+                cacheClientUtil.delete(key);
+                recordLag(committedAt);
+            } catch (Exception e) {
+                scheduleLocalRetry(key, committedAt, attempt + 1);
+            }
+        }, backoff(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    private void recordLag(long committedAt) {
+        long lag = System.currentTimeMillis() - committedAt;
+        deletedCount.increment();
+        lagMillis.add(lag);
+        maxLagMillis.accumulateAndGet(lag, Math::max);
+    }
+
+    /**
+     * 第n次重试前的等待时间，按2的指数增长
+     */
+    private long backoff(long attempt) {
+        return Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempt - 1, 20));
+    }
+
+    private static long timeOf(MapRecord<String, Object, Object> record) {
+        return Long.parseLong((String) record.getValue().get("time"));
+    }
+}
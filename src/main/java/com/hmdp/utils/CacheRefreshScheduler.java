@@ -0,0 +1,165 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 逻辑过期缓存的重建调度器，所有使用逻辑过期的实体共用
+ * 队列有界，同一个key排队时只保留一个任务；排队期间被请求次数越多的key越先执行；
+ * 队列满时拒绝，调用方继续返回旧数据
+ */
+@Component
+@Slf4j
+public class CacheRefreshScheduler {
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    //排队或正在执行的任务，用于去重
+    private final Map<String, RefreshTask> pending = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder deduplicatedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder rebuildNanos = new LongAdder();
+    private final AtomicLong maxRebuildNanos = new AtomicLong();
+
+    public CacheRefreshScheduler(@Value("${hmdp.cache.refresh.threads:10}") int threads,
+                                 @Value("${hmdp.cache.refresh.queue-capacity:1000}") int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadIndex = new AtomicInteger();
+        //优先级队列本身无界，容量由pending控制
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "cache-refresh-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * 如果这个key已经在排队，提高它的优先级
+     * @param key
+     * @return 已经在排队或正在执行返回true，调用方不需要再获取锁
+     */
+    public boolean touch(String key) {
+        RefreshTask task = pending.get(key);
+        if (task == null) {
+            return false;
+        }
+        deduplicatedCount.increment();
+        //还在队列中的任务，取出后提高优先级重新放入
+        if (executor.remove(task)) {
+            task.priority++;
+            executor.execute(task);
+        }
+        return true;
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key
+     * @param rebuild 重建逻辑
+     * @param onFinish 无论成功失败都会执行，一般用来释放锁
+     * @return 没有被调度(重复或者队列已满)返回false，此时onFinish不会执行
+     */
+    public boolean submit(String key, Runnable rebuild, Runnable onFinish) {
+        if (pending.size() >= queueCapacity) {
+            rejectedCount.increment();
+            log.warn("缓存重建队列已满，继续使用旧数据, key={}", key);
+            return false;
+        }
+        RefreshTask task = new RefreshTask(key, rebuild, onFinish, sequence.incrementAndGet());
+        if (pending.putIfAbsent(key, task) != null) {
+            deduplicatedCount.increment();
+            return false;
+        }
+        submittedCount.increment();
+        executor.execute(task);
+        return true;
+    }
+
+    /**
+     * 平均重建耗时(毫秒)
+     */
+    public long getAverageRebuildMillis() {
+        long finished = completedCount.sum() + failedCount.sum();
+        return finished == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(rebuildNanos.sum() / finished);
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("refresh.queue.depth", (long) executor.getQueue().size());
+        stats.put("refresh.active", (long) executor.getActiveCount());
+        stats.put("refresh.submitted", submittedCount.sum());
+        stats.put("refresh.deduplicated", deduplicatedCount.sum());
+        stats.put("refresh.rejected", rejectedCount.sum());
+        stats.put("refresh.completed", completedCount.sum());
+        stats.put("refresh.failed", failedCount.sum());
+        stats.put("refresh.latency.avg.ms", getAverageRebuildMillis());
+        stats.put("refresh.latency.max.ms", TimeUnit.NANOSECONDS.toMillis(maxRebuildNanos.get()));
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private class RefreshTask implements Runnable, Comparable<RefreshTask> {
+        private final String key;
+        private final Runnable rebuild;
+        private final Runnable onFinish;
+        private final long seq;
+        //排队期间被请求的次数，越大越先执行
+        private volatile int priority = 1;
+
+        RefreshTask(String key, Runnable rebuild, Runnable onFinish, long seq) {
+            this.key = key;
+            this.rebuild = rebuild;
+            this.onFinish = onFinish;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            try {
+                rebuild.run();
+                completedCount.increment();
+            } catch (Exception e) {
+                //重建失败，缓存中保留旧数据，下一次读取时会重新触发
+                failedCount.increment();
+                log.error("缓存重建失败, key={}", key, e);
+            } finally {
+                long cost = System.nanoTime() - begin;
+                rebuildNanos.add(cost);
+                maxRebuildNanos.accumulateAndGet(cost, Math::max);
+                pending.remove(key, this);
+                onFinish.run();
+            }
+        }
+
+        @Override
+        public int compareTo(RefreshTask other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 附近商铺查询的结果快照
+ * 第一页按(类型, 取整后的坐标格子, 半径)计算一次排好序的商铺id列表，保存一小段时间，
+ * 同一个格子里的用户和后续的翻页都直接从快照中截取，不再重新计算
+ * 快照的key就是返回给客户端的会话令牌：类型:格子x:格子y:半径
+ * 快照按格子中心点计算，不是按用户的实际位置：快照中的顺序是到格子中心的距离，和用户实际距离的误差不超过半个格子的对角线
+ * (0.001度约70米)，半径边界上的商铺也可能多一个或少一个；每一页返回前按用户的实际距离重新排序，跨页的顺序仍然以快照为准
+ */
+@Component
+public class GeoSessionStore {
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+    private final LocalCache localCache;
+    private final SingleFlight singleFlight;
+    //坐标取整的精度(度)，0.001度约100米
+    private final double cellDegrees;
+    private final long ttlSeconds;
+    private final int maxSize;
+
+    public GeoSessionStore(RedisTemplate<String, byte[]> cacheRedisTemplate, LocalCache localCache, SingleFlight singleFlight,
+                           @Value("${hmdp.geo.session.cell-degrees:0.001}") double cellDegrees,
+                           @Value("${hmdp.geo.session.ttl-seconds:60}") long ttlSeconds,
+                           @Value("${hmdp.geo.session.max-size:200}") int maxSize) {
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.localCache = localCache;
+        this.singleFlight = singleFlight;
+        this.cellDegrees = cellDegrees;
+        this.ttlSeconds = ttlSeconds;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 快照中最多保存的商铺数量，翻页超过这个数量后不再使用快照
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 根据查询条件计算会话令牌
+     */
+    public String tokenOf(Integer typeId, double x, double y, double radius) {
+        long cx = (long) Math.floor(x / cellDegrees);
+        long cy = (long) Math.floor(y / cellDegrees);
+        return typeId + ":" + cx + ":" + cy + ":" + (long) radius;
+    }
+
+    /**
+     * 解析客户端传回的会话令牌
+     * @return 格式不对或者和商铺类型不一致时返回null
+     */
+    public Session parse(String token, Integer typeId) {
+        if (token == null) {
+            return null;
+        }
+        String[] parts = token.split(":");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            if (Integer.parseInt(parts[0]) != typeId) {
+                return null;
+            }
+            //格子的中心点作为快照的查询坐标
+            double x = (Long.parseLong(parts[1]) + 0.5) * cellDegrees;
+            double y = (Long.parseLong(parts[2]) + 0.5) * cellDegrees;
+            double radius = Math.min(Long.parseLong(parts[3]), SystemConstants.MAX_SEARCH_RADIUS);
+            return new Session(token, x, y, radius);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 读取快照，不存在时计算并保存，同一个快照并发时只计算一次
+     * @param session
+     * @param builder 根据会话计算排好序的商铺id
+     * @return 商铺id，按距离从近到远
+     */
+    public long[] getOrBuild(Session session, Function<Session, long[]> builder) {
+        String key = RedisConstants.SHOP_GEO_SESSION_KEY + session.getToken();
+        Object cached = localCache.get(key);
+        if (cached instanceof long[]) {
+            return (long[]) cached;
+        }
+        return singleFlight.execute(key, () -> {
+            byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+            long[] ids;
+            if (bytes != null) {
+                ids = decode(bytes);
+            } else {
+                ids = builder.apply(session);
+                cacheRedisTemplate.opsForValue().set(key, encode(ids), ttlSeconds, TimeUnit.SECONDS);
+            }
+            localCache.put(key, ids, TimeUnit.SECONDS.toMillis(ttlSeconds));
+            return ids;
+        });
+    }
+
+    private static byte[] encode(long[] ids) {
+        ByteBuffer buffer = ByteBuffer.allocate(ids.length * Long.BYTES);
+        for (long id : ids) {
+            buffer.putLong(id);
+        }
+        return buffer.array();
+    }
+
+    private static long[] decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long[] ids = new long[bytes.length / Long.BYTES];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = buffer.getLong();
+        }
+        return ids;
+    }
+
+    /**
+     * 一个查询会话：令牌和快照的查询条件
+     */
+    public static class Session {
+        private final String token;
+        private final double x;
+        private final double y;
+        private final double radius;
+
+        public Session(String token, double x, double y, double radius) {
+            this.token = token;
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public double getX() {
+            return x;
+        }
+
+        public double getY() {
+            return y;
+        }
+
+        public double getRadius() {
+            return radius;
+        }
+    }
+}
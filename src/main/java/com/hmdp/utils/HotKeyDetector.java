@@ -0,0 +1,184 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点key探测
+ * 时间窗口分成若干个桶，每个桶是一个Count-Min Sketch，窗口内的访问次数是所有桶的估计值之和；
+ * 估计值超过阈值的key成为热点，桶轮转时重新评估，访问量下降的key自动降级，访问次数最多的前K个用于展示
+ * Count-Min Sketch只会高估不会低估，内存固定，和key的数量无关
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    private final int depth;
+    private final int width;
+    private final int bucketCount;
+    private final long threshold;
+    private final int topK;
+    private final int sampleRate;
+    private final AtomicLongArray[] buckets;
+    private volatile int current;
+
+    //窗口内超过阈值的key和最近一次的估计值
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+    //上一次轮转时评估出的前K个热点，按访问次数从大到小
+    private volatile Map<String, Long> hotKeys = Collections.emptyMap();
+    private final LongAdder recordCount = new LongAdder();
+    private final LongAdder promotedCount = new LongAdder();
+    private final ScheduledExecutorService rotator;
+
+    public HotKeyDetector(@Value("${hmdp.hotkey.window-seconds:10}") int windowSeconds,
+                          @Value("${hmdp.hotkey.buckets:5}") int bucketCount,
+                          @Value("${hmdp.hotkey.threshold:1000}") long threshold,
+                          @Value("${hmdp.hotkey.top-k:20}") int topK,
+                          @Value("${hmdp.hotkey.sketch-width:4096}") int width,
+                          @Value("${hmdp.hotkey.sketch-depth:4}") int depth,
+                          @Value("${hmdp.hotkey.sample-rate:1}") int sampleRate) {
+        this.depth = depth;
+        this.width = width;
+        this.bucketCount = bucketCount;
+        this.threshold = threshold;
+        this.topK = topK;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.buckets = new AtomicLongArray[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new AtomicLongArray(depth * width);
+        }
+        long bucketMillis = TimeUnit.SECONDS.toMillis(windowSeconds) / bucketCount;
+        this.rotator = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hotkey-rotator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rotator.scheduleAtFixedRate(this::rotate, bucketMillis, bucketMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录一次访问，按采样率只记录一部分，记录时按采样率放大
+     * @param key
+     */
+    public void record(String key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        recordCount.increment();
+        int[] indexes = indexesOf(key);
+        AtomicLongArray bucket = buckets[current];
+        for (int i = 0; i < depth; i++) {
+            bucket.addAndGet(indexes[i], sampleRate);
+        }
+        //已经是热点的key不需要再估计，估计值在轮转时更新
+        if (candidates.containsKey(key)) {
+            return;
+        }
+        long estimate = estimate(indexes);
+        if (estimate >= threshold && candidates.putIfAbsent(key, estimate) == null) {
+            promotedCount.increment();
+            log.info("发现热点key: {}, 窗口内访问次数约为{}", key, estimate);
+        }
+    }
+
+    /**
+     * 是否是热点key
+     * @param key
+     * @return
+     */
+    public boolean isHot(String key) {
+        return candidates.containsKey(key);
+    }
+
+    /**
+     * 当前的热点key
+     * @return key到窗口内估计访问次数的映射，按访问次数从大到小
+     */
+    public Map<String, Long> getHotKeys() {
+        return hotKeys;
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hotkey.recorded", recordCount.sum());
+        stats.put("hotkey.promoted", promotedCount.sum());
+        stats.put("hotkey.current", (long) candidates.size());
+        stats.put("hotkey.threshold", threshold);
+        stats.put("hotkey.memoryBytes", (long) bucketCount * depth * width * Long.BYTES);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rotator.shutdownNow();
+    }
+
+    /**
+     * 切换到下一个桶并清空它，窗口向前滑动一个桶；然后重新评估热点
+     */
+    private void rotate() {
+        try {
+            int next = (current + 1) % bucketCount;
+            AtomicLongArray bucket = buckets[next];
+            for (int i = 0; i < bucket.length(); i++) {
+                bucket.set(i, 0);
+            }
+            current = next;
+            //访问量已经低于阈值的key降级
+            candidates.replaceAll((key, old) -> estimate(indexesOf(key)));
+            candidates.entrySet().removeIf(entry -> entry.getValue() < threshold);
+            Map<String, Long> top = new LinkedHashMap<>();
+            candidates.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .limit(topK)
+                    .forEach(entry -> top.put(entry.getKey(), entry.getValue()));
+            hotKeys = Collections.unmodifiableMap(top);
+        } catch (Exception e) {
+            log.error("热点key窗口轮转失败", e);
+        }
+    }
+
+    /**
+     * 窗口内的估计次数：每一行取所有桶之和，再取各行的最小值
+     */
+    private long estimate(int[] indexes) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            long sum = 0;
+            for (AtomicLongArray bucket : buckets) {
+                sum += bucket.get(indexes[i]);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * 每一行的位置，用两个hash值组合出depth个hash函数
+     */
+    private int[] indexesOf(String key) {
+        long[] hash = MurmurHash.hash128(key.getBytes(StandardCharsets.UTF_8));
+        long h1 = hash[0];
+        long h2 = hash[1];
+        int[] indexes = new int[depth];
+        for (int i = 0; i < depth; i++) {
+            long combined = h1 + i * h2;
+            indexes[i] = i * width + (int) ((combined & Long.MAX_VALUE) % width);
+        }
+        return indexes;
+    }
+}
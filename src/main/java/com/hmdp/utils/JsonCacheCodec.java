@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON格式，可读性好，兼容旧数据
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        //切换回JSON格式时，仍然可以读取二进制格式写入的数据
+        if (BinaryCacheCodec.isBinary(bytes, offset)) {
+            return BinaryCacheCodec.INSTANCE.decode(bytes, offset, type);
+        }
+        return JSONUtil.toBean(new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8), type);
+    }
+}
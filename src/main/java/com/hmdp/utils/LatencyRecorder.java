@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 记录最近N次操作的耗时，计算分位数
+ * 环形数组覆盖写入，不加锁；统计时复制一份排序，结果是近似值
+ */
+public class LatencyRecorder {
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong();
+
+    public LatencyRecorder(int capacity) {
+        this.samples = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * 记录一次耗时
+     * @param nanos 纳秒
+     */
+    public void record(long nanos) {
+        long n = count.getAndIncrement();
+        samples.set((int) (n % samples.length()), nanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * 计算最近N次的分位数
+     * @param prefix 统计项的前缀
+     * @return p50、p99、最大值，单位微秒
+     */
+    public Map<String, Long> getStats(String prefix) {
+        int size = (int) Math.min(count.get(), samples.length());
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put(prefix + ".count", count.get());
+        stats.put(prefix + ".p50.us", percentile(sorted, 0.50) / 1000);
+        stats.put(prefix + ".p99.us", percentile(sorted, 0.99) / 1000);
+        stats.put(prefix + ".max.us", size == 0 ? 0 : sorted[size - 1] / 1000);
+        return stats;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
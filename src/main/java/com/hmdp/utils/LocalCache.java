@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内一级缓存(L1)，位于Redis(L2)之前
+ * 按容量LRU淘汰，按写入时间过期；写操作通过Redis发布订阅通知其它节点删除本地副本
+ */
+@Component
+@Slf4j
+public class LocalCache implements MessageListener {
+    //当前节点的标识，用来忽略自己发出的失效消息
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LRUCache<String, Object> cache;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public LocalCache(StringRedisTemplate stringRedisTemplate,
+                      @Value("${hmdp.cache.local.maximum-size:10000}") int maximumSize,
+                      @Value("${hmdp.cache.local.expire-seconds:60}") long expireSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cache = CacheUtil.newLRUCache(maximumSize, TimeUnit.SECONDS.toMillis(expireSeconds));
+    }
+
+    /**
+     * 查询本地缓存，不刷新访问时间，保证按写入时间过期
+     * @param key
+     * @return 未命中返回null
+     */
+    public Object get(String key) {
+        Object value = cache.get(key, false);
+        if (value == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return value;
+    }
+
+    public void put(String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        cache.put(key, value);
+    }
+
+    /**
+     * 使用单独的过期时间写入，用于热点数据的短期副本
+     * @param key
+     * @param value
+     * @param ttlMillis
+     */
+    public void put(String key, Object value, long ttlMillis) {
+        if (value == null) {
+            return;
+        }
+        cache.put(key, value, ttlMillis);
+    }
+
+    /**
+     * 只删除当前节点的本地副本
+     * @param key
+     */
+    public void invalidate(String key) {
+        cache.remove(key);
+    }
+
+    /**
+     * 通知其它节点删除本地副本
+     * @param key
+     */
+    public void broadcastInvalidate(String key) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, NODE_ID + ":" + key);
+        } catch (Exception e) {
+            //广播失败时其它节点的副本最多存活到本地过期时间
+            log.error("广播缓存失效消息失败, key={}", key, e);
+        }
+    }
+
+    /**
+     * 收到失效消息，删除本地副本
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        //自己发出的消息，本地已经处理过了
+        if (NODE_ID.equals(body.substring(0, index))) {
+            return;
+        }
+        cache.remove(body.substring(index + 1));
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+}
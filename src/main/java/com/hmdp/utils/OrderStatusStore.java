@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀订单的处理状态
+ * 秒杀脚本放行时写入seckill:status:订单id = 用户id:QUEUED，订单消费者处理后改为PERSISTED或FAILED，
+ * 并通过Redis发布订阅通知所有节点：节点把最终状态保存在本地，唤醒正在长轮询这个订单的请求；
+ * 最终状态只有在死信重放时会改回QUEUED，同样通过发布订阅通知所有节点删除本地保存的状态
+ * 查询只访问本地内存和Redis，不访问数据库；只有下单的用户可以查询
+ */
+@Slf4j
+@Component
+public class OrderStatusStore implements MessageListener {
+    public static final String QUEUED = "QUEUED";
+    public static final String PERSISTED = "PERSISTED";
+    public static final String FAILED = "FAILED";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long ttlSeconds;
+    private final long maxWaitSeconds;
+    //最终状态只在死信重放时变化，保存在本地，订单id -> 用户id:状态
+    private final LRUCache<Long, String> finished;
+    //订单id -> 等待最终状态的长轮询请求
+    private final Map<Long, List<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder notified = new LongAdder();
+
+    public OrderStatusStore(StringRedisTemplate stringRedisTemplate,
+                            @Value("${hmdp.seckill.order-status.ttl-seconds:1800}") long ttlSeconds,
+                            @Value("${hmdp.seckill.order-status.max-wait-seconds:30}") long maxWaitSeconds,
+                            @Value("${hmdp.seckill.order-status.local-size:100000}") int localSize) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlSeconds = ttlSeconds;
+        this.maxWaitSeconds = maxWaitSeconds;
+        this.finished = CacheUtil.newLRUCache(localSize, TimeUnit.SECONDS.toMillis(ttlSeconds));
+    }
+
+    /**
+     * 状态的存活时间，秒杀脚本写入QUEUED时使用
+     */
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * 记录排队中的订单，不在秒杀脚本中下单时调用
+     */
+    public void queued(long orderId, Long userId) {
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STATUS_KEY + orderId,
+                userId + ":" + QUEUED, ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 重放死信前调用，在订单重新写入队列之前把状态改回QUEUED，避免覆盖消费者写入的最终状态，
+     * 并通知所有节点删除本地保存的最终状态
+     * @return 原来的状态，重新写入队列失败时用restore恢复
+     */
+    public String requeue(long orderId, Long userId) {
+        String key = RedisConstants.SECKILL_STATUS_KEY + orderId;
+        String previous = stringRedisTemplate.opsForValue().get(key);
+        stringRedisTemplate.opsForValue().set(key, userId + ":" + QUEUED, ttlSeconds, TimeUnit.SECONDS);
+        finished.remove(orderId);
+        publish(orderId + ":" + userId + ":" + QUEUED);
+        return previous;
+    }
+
+    /**
+     * 恢复requeue之前的状态，各节点下次查询时从Redis读取
+     */
+    public void restore(long orderId, String previous) {
+        String key = RedisConstants.SECKILL_STATUS_KEY + orderId;
+        if (previous == null) {
+            stringRedisTemplate.delete(key);
+        } else {
+            stringRedisTemplate.opsForValue().set(key, previous, ttlSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 订单消费者处理完一批后调用，pipeline写入最终状态，再通知所有节点
+     * @param orders 订单
+     * @param status PERSISTED或FAILED
+     */
+    public void complete(List<VoucherOrder> orders, String status) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.setEx(RedisConstants.SECKILL_STATUS_KEY + order.getId(), ttlSeconds, order.getUserId() + ":" + status);
+            }
+            return null;
+        });
+        //消息格式：订单id:用户id:状态,订单id:用户id:状态
+        StringBuilder body = new StringBuilder();
+        for (VoucherOrder order : orders) {
+            if (body.length() > 0) {
+                body.append(',');
+            }
+            body.append(order.getId()).append(':').append(order.getUserId()).append(':').append(status);
+        }
+        publish(body.toString());
+    }
+
+    private void publish(String body) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_STATUS_CHANNEL, body);
+        } catch (Exception e) {
+            //长轮询的请求超时后自己查询
+            log.error("发布订单状态失败", e);
+        }
+    }
+
+    /**
+     * 查询订单状态
+     * @return 状态，订单不存在、已经过期或者不属于这个用户时返回null
+     */
+    public String get(Long orderId, Long userId) {
+        String value = finished.get(orderId, false);
+        if (value != null) {
+            localHits.increment();
+        } else {
+            value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STATUS_KEY + orderId);
+            if (value == null) {
+                return null;
+            }
+            redisHits.increment();
+            if (!value.endsWith(":" + QUEUED)) {
+                finished.put(orderId, value);
+            }
+        }
+        int index = value.indexOf(':');
+        if (!value.substring(0, index).equals(userId.toString())) {
+            return null;
+        }
+        return value.substring(index + 1);
+    }
+
+    /**
+     * 长轮询：订单还在排队时等待最终状态，超时后返回QUEUED
+     * @param waitSeconds 等待时间，为0时直接返回，超过max-wait-seconds时按max-wait-seconds等待
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long waitSeconds) {
+        long wait = Math.min(Math.max(0, waitSeconds), maxWaitSeconds);
+        DeferredResult<Result> result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(wait), Result.ok(QUEUED));
+        String status = get(orderId, userId);
+        if (status == null) {
+            result.setResult(Result.fail("订单不存在"));
+            return result;
+        }
+        if (!QUEUED.equals(status) || wait == 0) {
+            result.setResult(Result.ok(status));
+            return result;
+        }
+        waiters.compute(orderId, (id, list) -> {
+            List<DeferredResult<Result>> results = list == null ? new ArrayList<>() : list;
+            results.add(result);
+            return results;
+        });
+        result.onCompletion(() -> waiters.computeIfPresent(orderId, (id, list) -> {
+            list.remove(result);
+            return list.isEmpty() ? null : list;
+        }));
+        //注册之后再查一次本地，避免错过注册之前到达的通知
+        String again = finished.get(orderId, false);
+        if (again != null) {
+            result.setResult(Result.ok(again.substring(again.indexOf(':') + 1)));
+        }
+        return result;
+    }
+
+    /**
+     * 本地和Redis命中的查询次数、正在等待的长轮询请求数
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("status.local.hits", localHits.sum());
+        stats.put("status.redis.hits", redisHits.sum());
+        stats.put("status.local.size", (long) finished.size());
+        stats.put("status.waiters", (long) waiters.size());
+        stats.put("status.notified", notified.sum());
+        return stats;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String entry : body.split(",")) {
+            int index = entry.indexOf(':');
+            Long orderId = Long.valueOf(entry.substring(0, index));
+            String value = entry.substring(index + 1);
+            if (value.endsWith(":" + QUEUED)) {
+                //死信重放，删除本地的最终状态，之后从Redis查询
+                finished.remove(orderId);
+                continue;
+            }
+            //先保存到本地，再唤醒等待的请求
+            finished.put(orderId, value);
+            List<DeferredResult<Result>> results = waiters.remove(orderId);
+            if (results == null) {
+                continue;
+            }
+            String status = value.substring(value.indexOf(':') + 1);
+            for (DeferredResult<Result> result : new ArrayList<>(results)) {
+                result.setResult(Result.ok(status));
+                notified.increment();
+            }
+        }
+    }
+}
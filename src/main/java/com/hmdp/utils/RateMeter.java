@@ -0,0 +1,44 @@
+package com.hmdp.utils;
+
+/**
+ * 按秒分桶统计最近一段时间的速率
+ * 每秒一个桶，环形复用，统计时只计算已经结束的整秒
+ */
+public class RateMeter {
+    private final int windowSeconds;
+    private final long[] counts;
+    private final long[] seconds;
+
+    public RateMeter(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        //多一个桶给当前正在累计的一秒
+        this.counts = new long[windowSeconds + 1];
+        this.seconds = new long[windowSeconds + 1];
+    }
+
+    public synchronized void record(long n) {
+        long now = System.currentTimeMillis() / 1000;
+        int i = (int) (now % counts.length);
+        if (seconds[i] != now) {
+            seconds[i] = now;
+            counts[i] = 0;
+        }
+        counts[i] += n;
+    }
+
+    /**
+     * 最近windowSeconds个整秒的平均速率
+     * @return 每秒的数量
+     */
+    public synchronized long getRate() {
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            long age = now - seconds[i];
+            if (age >= 1 && age <= windowSeconds) {
+                total += counts[i];
+            }
+        }
+        return total / windowSeconds;
+    }
+}
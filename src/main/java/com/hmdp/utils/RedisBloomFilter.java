@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 布隆过滤器，位图保存在Redis中，本地保存一份镜像
+ * 判断时只读本地镜像，不访问Redis；新增元素时同时写Redis并广播给其它节点
+ */
+@Slf4j
+public class RedisBloomFilter implements MessageListener {
+    private final StringRedisTemplate stringRedisTemplate;
+    //位图的大小和hash函数的个数
+    private final long bitSize;
+    private final int hashFunctions;
+    private final double fpp;
+    private final String key;
+    private final String channel;
+    //本地镜像
+    private final AtomicLongArray words;
+    //在全量构建完成之前，所有判断都放行
+    private volatile boolean ready = false;
+    private final LongAdder rejectCount = new LongAdder();
+
+    /**
+     * @param name 过滤器名称
+     * @param expectedInsertions 预计元素个数
+     * @param fpp 误判率
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String name, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.fpp = fpp;
+        //m = -n*ln(p)/(ln2)^2，本地镜像最多使用int范围内的位
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bitSize = Math.max(64, Math.min(m, Integer.MAX_VALUE));
+        //k = m/n*ln2
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        //参数变化后位图不再兼容，所以把参数放在key中
+        this.key = RedisConstants.BLOOM_KEY_PREFIX + name + ":" + bitSize + ":" + hashFunctions;
+        this.channel = RedisConstants.BLOOM_SYNC_CHANNEL + name;
+        this.words = new AtomicLongArray((int) ((bitSize + 63) / 64));
+    }
+
+    /**
+     * 判断元素是否可能存在
+     * @param value
+     * @return false表示一定不存在
+     */
+    public boolean mightContain(Object value) {
+        if (!ready || value == null) {
+            return true;
+        }
+        for (long offset : offsets(value)) {
+            if ((words.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                rejectCount.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增元素，写入本地镜像和Redis位图，并通知其它节点
+     * @param value
+     */
+    public void put(Object value) {
+        long[] offsets = offsets(value);
+        setLocal(offsets);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+        stringRedisTemplate.convertAndSend(channel, value.toString());
+    }
+
+    /**
+     * 只写入本地镜像，用于全量构建
+     * @param values
+     */
+    public void putAllLocal(Collection<?> values) {
+        for (Object value : values) {
+            setLocal(offsets(value));
+        }
+    }
+
+    /**
+     * 将本地镜像合并到Redis位图(BITOP OR)，再把合并结果加载回本地
+     * 这样多个节点同时启动构建也不会丢失其它节点新增的元素
+     */
+    public void syncWithRedis() {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (key + ":tmp:" + UUID.randomUUID().toString(true)).getBytes(StandardCharsets.UTF_8);
+        byte[] local = toRedisBytes();
+        byte[] merged = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> {
+            connection.set(tmpKey, local);
+            connection.bitOp(RedisStringCommands.BitOperation.OR, rawKey, rawKey, tmpKey);
+            connection.del(tmpKey);
+            return connection.get(rawKey);
+        });
+        if (merged != null) {
+            loadRedisBytes(merged);
+        }
+        ready = true;
+        log.info("布隆过滤器{}同步完成, bitSize={}, hashFunctions={}", key, bitSize, hashFunctions);
+    }
+
+    /**
+     * 其它节点新增了元素
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String value = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (StrUtil.isNotBlank(value)) {
+            setLocal(offsets(value));
+        }
+    }
+
+    /**
+     * 双重hash计算k个位置: h1 + i*h2
+     */
+    private long[] offsets(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString().getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[hashFunctions];
+        long combined = hash[0];
+        for (int i = 0; i < hashFunctions; i++) {
+            offsets[i] = Math.floorMod(combined, bitSize);
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private void setLocal(long[] offsets) {
+        for (long offset : offsets) {
+            long mask = 1L << offset;
+            words.accumulateAndGet((int) (offset >>> 6), mask, (a, b) -> a | b);
+        }
+    }
+
+    /**
+     * Redis位图中第0位是第一个字节的最高位，本地镜像中第0位是第一个long的最低位
+     */
+    private byte[] toRedisBytes() {
+        byte[] bytes = new byte[(int) ((bitSize + 7) / 8)];
+        for (int i = 0; i < bytes.length; i++) {
+            int b = (int) (words.get(i >>> 3) >>> ((i & 7) * 8)) & 0xFF;
+            bytes[i] = (byte) (Integer.reverse(b) >>> 24);
+        }
+        return bytes;
+    }
+
+    private void loadRedisBytes(byte[] bytes) {
+        int length = Math.min(bytes.length, (int) ((bitSize + 7) / 8));
+        for (int i = 0; i < length; i++) {
+            int b = Integer.reverse(bytes[i] & 0xFF) >>> 24;
+            if (b != 0) {
+                long mask = (long) b << ((i & 7) * 8);
+                words.accumulateAndGet(i >>> 3, mask, (x, y) -> x | y);
+            }
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    public double getFpp() {
+        return fpp;
+    }
+
+    /**
+     * 本地镜像占用的内存(字节)，Redis中的位图大小相同
+     */
+    public long getMemoryBytes() {
+        return (bitSize + 7) / 8;
+    }
+
+    public long getRejectCount() {
+        return rejectCount.sum();
+    }
+}
@@ -10,13 +10,34 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_SHOP_LOGICAL_TTL = 20L;
     public static final String CACHE_SHOPTYPE_KEY = "cache:shoptype";
+    public static final String CACHE_SHOPTYPE_VERSION_KEY = "cache:shoptype:version";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+    public static final String CACHE_INVALIDATE_STREAM = "stream.cache.invalidate";
+    public static final String BLOOM_KEY_PREFIX = "bloom:";
+    public static final String BLOOM_SYNC_CHANNEL = "bloom:sync:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_ACTIVE_KEY = "seckill:active";
+    public static final String SECKILL_ARCHIVE_KEY = "seckill:archive";
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final String SECKILL_STATUS_CHANNEL = "seckill:status";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_SYNC_CHANNEL = "shop:geo:sync";
+    public static final String SHOP_GEO_REBUILD_SUFFIX = ":rebuilding";
+    public static final String SHOP_NAME_SYNC_CHANNEL = "shop:name:sync";
+    //不放在shop:geo:下，避免按shop:geo:*扫描GEO索引时扫到快照
+    public static final String SHOP_GEO_SESSION_KEY = "geo:session:";
     public static final String USER_SIGN_KEY = "sign:";
 }
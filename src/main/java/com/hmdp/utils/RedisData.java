@@ -7,5 +7,7 @@ import java.time.LocalDateTime;
 @Data
 public class RedisData<T>{
     private LocalDateTime expireTime;
+    //上一次重建的耗时(毫秒)
+    private Long rebuildCost;
     private T data;
 }
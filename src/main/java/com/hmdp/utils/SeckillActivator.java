@@ -0,0 +1,299 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀券的上线和下线
+ * 创建秒杀券时只写入数据库，开始前preload-seconds秒才把库存和时间窗口seckill:window:券id加载到Redis，
+ * 秒杀脚本根据时间窗口拒绝未开始和已经结束的请求；
+ * 结束retire-delay-seconds秒后把剩余库存和购买人数归档到seckill:archive，再删除库存、购买记录和时间窗口，并统计回收的内存。
+ * 购买记录删除后由tb_voucher_order的唯一索引保证一人一单，队列中还没有消费的订单不受影响
+ * 上线的秒杀券记录在seckill:active中，分数是结束时间。每个节点都会扫描，上线、下线和补充库存使用同一把分布式锁
+ */
+@Slf4j
+@Component
+public class SeckillActivator {
+    private static final String LOCK_PREFIX = "lock:seckill:activation:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final SeckillStockShards seckillStockShards;
+    private final SeckillBuyers seckillBuyers;
+    private final RedissonClient redissonClient;
+    private final long scanSeconds;
+    private final long preloadSeconds;
+    private final long retireDelaySeconds;
+    private final ScheduledExecutorService executor;
+    //本节点确认过已经上线的秒杀券，避免每次扫描都访问Redis
+    private final Set<Long> activated = ConcurrentHashMap.newKeySet();
+    private final LongAdder activatedCount = new LongAdder();
+    private final LongAdder retiredCount = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    private volatile long lastReclaimedBytes;
+
+    public SeckillActivator(StringRedisTemplate stringRedisTemplate,
+                            SeckillVoucherMapper seckillVoucherMapper,
+                            SeckillStockShards seckillStockShards,
+                            SeckillBuyers seckillBuyers,
+                            RedissonClient redissonClient,
+                            @Value("${hmdp.seckill.activation.scan-seconds:10}") long scanSeconds,
+                            @Value("${hmdp.seckill.activation.preload-seconds:60}") long preloadSeconds,
+                            @Value("${hmdp.seckill.activation.retire-delay-seconds:300}") long retireDelaySeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.seckillStockShards = seckillStockShards;
+        this.seckillBuyers = seckillBuyers;
+        this.redissonClient = redissonClient;
+        this.scanSeconds = scanSeconds;
+        this.preloadSeconds = preloadSeconds;
+        this.retireDelaySeconds = retireDelaySeconds;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "seckill-activator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 启动时同步扫描一次，Web容器启动之前已经进行中的秒杀券都有时间窗口，
+     * 不会在第一次定时扫描之前把正在秒杀的请求按没有上线拒绝
+     */
+    @PostConstruct
+    public void init() {
+        scanQuietly();
+        executor.scheduleWithFixedDelay(this::scanQuietly, scanSeconds, scanSeconds, TimeUnit.SECONDS);
+    }
+
+    private void scanQuietly() {
+        try {
+            scan();
+        } catch (Exception e) {
+            //等待下一次扫描
+            log.error("扫描秒杀券上线和下线失败", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 上线即将开始的秒杀券，下线结束超过retire-delay-seconds的秒杀券
+     */
+    public void scan() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> upcoming = seckillVoucherMapper.selectList(new QueryWrapper<SeckillVoucher>()
+                .le("begin_time", now.plusSeconds(preloadSeconds))
+                .gt("end_time", now));
+        for (SeckillVoucher voucher : upcoming) {
+            if (activated.contains(voucher.getVoucherId())) {
+                continue;
+            }
+            try {
+                activate(voucher);
+            } catch (Exception e) {
+                log.error("秒杀券{}上线失败", voucher.getVoucherId(), e);
+            }
+        }
+        long retireBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(retireDelaySeconds);
+        Set<String> ended = stringRedisTemplate.opsForZSet()
+                .rangeByScore(RedisConstants.SECKILL_ACTIVE_KEY, 0, retireBefore);
+        if (ended == null) {
+            return;
+        }
+        for (String voucherId : ended) {
+            try {
+                retire(Long.valueOf(voucherId));
+            } catch (Exception e) {
+                log.error("秒杀券{}下线失败", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 判断是否需要在创建时直接上线，开始时间在preload-seconds之内的不等待下一次扫描
+     */
+    public boolean isDue(SeckillVoucher voucher) {
+        LocalDateTime now = LocalDateTime.now();
+        return !voucher.getBeginTime().isAfter(now.plusSeconds(preloadSeconds)) && voucher.getEndTime().isAfter(now);
+    }
+
+    /**
+     * 把库存和时间窗口加载到Redis，已经上线的不重复加载
+     * 库存使用SETNX写入，上线之前已经存在的库存保持不变；时间窗口最后写入，写入后才开始接受秒杀请求
+     * @param voucher 数据库中的秒杀券，库存为加载时的库存
+     * @return 是否是本次上线
+     */
+    public boolean activate(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        RLock lock = redissonClient.getLock(LOCK_PREFIX + voucherId);
+        lock.lock();
+        try {
+            if (isActive(voucherId)) {
+                activated.add(voucherId);
+                return false;
+            }
+            long begin = LocalDateTimeUtil.toEpochMilli(voucher.getBeginTime());
+            long end = LocalDateTimeUtil.toEpochMilli(voucher.getEndTime());
+            Map<String, String> window = new HashMap<>(4);
+            window.put("begin", String.valueOf(begin));
+            window.put("end", String.valueOf(end));
+            int shards = seckillStockShards.shardsOf(voucherId);
+            if (shards > 1) {
+                seckillStockShards.load(voucherId, voucher.getStock(), shards, window);
+            } else {
+                stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.SECKILL_STOCK_KEY + voucherId, voucher.getStock().toString());
+                stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_WINDOW_KEY + voucherId, window);
+            }
+            stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_ACTIVE_KEY, voucherId.toString(), end);
+            activated.add(voucherId);
+            activatedCount.increment();
+            log.info("秒杀券{}上线，库存{}，分片{}，开始时间{}", voucherId, voucher.getStock(), shards, voucher.getBeginTime());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 补充Redis中的库存，还没有上线的秒杀券上线时会从数据库加载最新的库存，已经下线的不再补充
+     * @param voucherId
+     * @param count 补充的数量
+     */
+    public void addStock(Long voucherId, int count) {
+        RLock lock = redissonClient.getLock(LOCK_PREFIX + voucherId);
+        lock.lock();
+        try {
+            if (isActive(voucherId)) {
+                seckillStockShards.add(voucherId, count);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 归档并删除秒杀券在Redis中的所有key
+     * 也可以用来清理没有记录在seckill:active中的旧秒杀券
+     * @param voucherId
+     * @return 归档的剩余库存、购买人数和回收的内存
+     */
+    public Map<String, Object> retire(Long voucherId) {
+        RLock lock = redissonClient.getLock(LOCK_PREFIX + voucherId);
+        lock.lock();
+        try {
+            int shards = seckillStockShards.shardsOf(voucherId);
+            List<String> stockKeys = new ArrayList<>(shards);
+            List<String> orderKeys = new ArrayList<>(shards);
+            List<String> keys = new ArrayList<>();
+            if (shards > 1) {
+                for (int i = 0; i < shards; i++) {
+                    stockKeys.add(SeckillStockShards.stockKey(voucherId, i));
+                    orderKeys.add(SeckillStockShards.orderKey(voucherId, i));
+                }
+                keys.addAll(seckillStockShards.keysOf(voucherId, shards));
+            } else {
+                stockKeys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+                orderKeys.add(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+                keys.add(stockKeys.get(0));
+                keys.add(RedisConstants.SECKILL_WINDOW_KEY + voucherId);
+            }
+            //购买记录可能是集合和多个位图块
+            long buyers = 0;
+            for (String orderKey : orderKeys) {
+                List<String> buyerKeys = seckillBuyers.keysOf(orderKey);
+                buyers += seckillBuyers.count(buyerKeys);
+                keys.addAll(buyerKeys);
+            }
+            long bytes = 0;
+            for (String key : keys) {
+                bytes += memoryUsage(key);
+            }
+            long remaining = 0;
+            List<String> stocks = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+            if (stocks != null) {
+                for (String stock : stocks) {
+                    remaining += stock == null ? 0 : Long.parseLong(stock);
+                }
+            }
+            Map<String, Object> archive = new LinkedHashMap<>();
+            archive.put("voucherId", voucherId);
+            archive.put("remainingStock", remaining);
+            archive.put("buyers", buyers);
+            archive.put("reclaimedBytes", bytes);
+            archive.put("retiredAt", System.currentTimeMillis());
+            //先归档再删除，删除大的购买记录使用UNLINK，不阻塞Redis
+            stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_ARCHIVE_KEY, voucherId.toString(), JSONUtil.toJsonStr(archive));
+            stringRedisTemplate.unlink(keys);
+            stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ACTIVE_KEY, voucherId.toString());
+            activated.remove(voucherId);
+            seckillStockShards.forget(voucherId);
+            retiredCount.increment();
+            reclaimedBytes.add(bytes);
+            lastReclaimedBytes = bytes;
+            log.info("秒杀券{}下线，剩余库存{}，购买人数{}，回收内存{}字节", voucherId, remaining, buyers, bytes);
+            return archive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 上线和下线的次数、回收的内存
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        Long active = stringRedisTemplate.opsForZSet().zCard(RedisConstants.SECKILL_ACTIVE_KEY);
+        stats.put("activation.active", active == null ? 0 : active);
+        stats.put("activation.activated", activatedCount.sum());
+        stats.put("activation.retired", retiredCount.sum());
+        stats.put("activation.reclaimed.bytes", reclaimedBytes.sum());
+        stats.put("activation.last.reclaimed.bytes", lastReclaimedBytes);
+        return stats;
+    }
+
+    private boolean isActive(Long voucherId) {
+        return stringRedisTemplate.opsForZSet().score(RedisConstants.SECKILL_ACTIVE_KEY, voucherId.toString()) != null;
+    }
+
+    /**
+     * MEMORY USAGE统计key占用的内存，SAMPLES 0表示统计集合的所有元素
+     * @return 字节数，key不存在时为0
+     */
+    public long memoryUsage(String key) {
+        Object bytes = stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("MEMORY",
+                "USAGE".getBytes(StandardCharsets.UTF_8),
+                key.getBytes(StandardCharsets.UTF_8),
+                "SAMPLES".getBytes(StandardCharsets.UTF_8),
+                "0".getBytes(StandardCharsets.UTF_8)));
+        return bytes instanceof Long ? (Long) bytes : 0;
+    }
+}
@@ -0,0 +1,240 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀请求的微批处理
+ * 同一个优惠券的并发请求在batch-window-micros微秒内合并成一批，一次执行seckill_batch.lua，每个请求按顺序取自己的结果；
+ * 一批达到max-size时立即执行。Redis连接池只需要承担批次数的调用，代价是每个请求最多多等一个窗口
+ * 窗口为0时关闭，请求直接执行seckill.lua；窗口可以在运行中修改，便于对比不同窗口的吞吐量和延迟
+ */
+@Slf4j
+@Component
+public class SeckillBatcher {
+    /**
+     * 等待超时时批次已经交给Redis，结果未知：脚本放行时已经写入订单状态，客户端通过订单状态查询结果
+     */
+    public static final long PENDING = -1L;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> BATCH_SCRIPT;
+
+    static {
+        BATCH_SCRIPT = new DefaultRedisScript<>();
+        BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+        BATCH_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final OrderStatusStore orderStatusStore;
+    private final SeckillBuyers seckillBuyers;
+    private final int maxSize;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService executor;
+    //优惠券id -> 正在收集请求的批次
+    private final Map<Long, Batch> open = new ConcurrentHashMap<>();
+    private volatile long windowMicros;
+    private volatile Meter meter = new Meter();
+
+    public SeckillBatcher(StringRedisTemplate stringRedisTemplate,
+                          OrderStatusStore orderStatusStore,
+                          SeckillBuyers seckillBuyers,
+                          @Value("${hmdp.seckill.admission.batch-window-micros:0}") long windowMicros,
+                          @Value("${hmdp.seckill.admission.max-size:64}") int maxSize,
+                          @Value("${hmdp.seckill.admission.threads:4}") int threads,
+                          @Value("${hmdp.seckill.admission.timeout-millis:1000}") long timeoutMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.orderStatusStore = orderStatusStore;
+        this.seckillBuyers = seckillBuyers;
+        this.windowMicros = windowMicros;
+        this.maxSize = maxSize;
+        this.timeoutMillis = timeoutMillis;
+        AtomicInteger index = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "seckill-batcher-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return windowMicros > 0;
+    }
+
+    /**
+     * 修改批次窗口，同时重新开始统计
+     * @param windowMicros 微秒，0表示关闭
+     */
+    public void setWindowMicros(long windowMicros) {
+        this.windowMicros = windowMicros;
+        this.meter = new Meter();
+        log.info("秒杀请求的批次窗口修改为{}微秒", windowMicros);
+    }
+
+    /**
+     * 加入当前批次并等待结果
+     * @param streamKey 订单队列
+     * @param buyerKey 购买记录的key
+     * @param offset 位图偏移量，为空时使用集合
+     * @return 和seckill.lua相同的返回值；批次已经执行但等待超时时返回PENDING
+     */
+    public Long admit(Long voucherId, Long userId, long orderId, String streamKey, String buyerKey, String offset) {
+        long begin = System.nanoTime();
+        Attempt attempt = new Attempt(new String[]{userId.toString(), String.valueOf(orderId), streamKey, buyerKey, offset});
+        Batch batch;
+        while (true) {
+            batch = open.computeIfAbsent(voucherId, Batch::new);
+            boolean full;
+            synchronized (batch) {
+                if (batch.closed) {
+                    //刚刚开始执行，加入下一批
+                    continue;
+                }
+                batch.attempts.add(attempt);
+                full = batch.attempts.size() >= maxSize;
+                if (batch.attempts.size() == 1 && !full) {
+                    //第一个请求开始计时
+                    Batch current = batch;
+                    executor.schedule(() -> flush(current), windowMicros, TimeUnit.MICROSECONDS);
+                }
+            }
+            if (full) {
+                Batch current = batch;
+                executor.execute(() -> flush(current));
+            }
+            break;
+        }
+        try {
+            return attempt.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            synchronized (batch) {
+                if (!batch.closed) {
+                    //还没有交给Redis，撤回后直接失败
+                    batch.attempts.remove(attempt);
+                    throw new RuntimeException("秒杀请求等待批次结果超时", e);
+                }
+            }
+            //已经交给Redis，脚本可能已经扣减库存并写入订单队列，不能按失败返回
+            meter.pending.increment();
+            return PENDING;
+        } finally {
+            meter.latency.record(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 批次数、平均批次大小、每秒处理的请求数和请求的等待时间
+     */
+    public Map<String, Long> getStats() {
+        Meter current = meter;
+        Map<String, Long> stats = new LinkedHashMap<>();
+        long batches = current.batches.sum();
+        stats.put("admission.window.micros", windowMicros);
+        stats.put("admission.batches", batches);
+        stats.put("admission.attempts", current.attempts.sum());
+        stats.put("admission.batch.avg.size", batches == 0 ? 0 : current.attempts.sum() / batches);
+        stats.put("admission.pending", current.pending.sum());
+        stats.put("admission.attempts.per.sec", current.attemptRate.getRate());
+        stats.put("admission.batches.per.sec", current.batchRate.getRate());
+        stats.putAll(current.latency.getStats("admission.wait"));
+        return stats;
+    }
+
+    private void flush(Batch batch) {
+        List<Attempt> attempts;
+        synchronized (batch) {
+            if (batch.closed) {
+                //窗口到期和批次已满都会触发，只执行一次
+                return;
+            }
+            batch.closed = true;
+            attempts = batch.attempts;
+        }
+        open.remove(batch.voucherId, batch);
+        if (attempts.isEmpty()) {
+            //唯一的请求等待超时后已经撤回
+            return;
+        }
+        List<String> args = new ArrayList<>(4 + attempts.size() * 5);
+        args.add(batch.voucherId.toString());
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(String.valueOf(orderStatusStore.getTtlSeconds()));
+        args.add(seckillBuyers.getDense());
+        for (Attempt attempt : attempts) {
+            Collections.addAll(args, attempt.args);
+        }
+        try {
+            List<?> results = stringRedisTemplate.execute(BATCH_SCRIPT, Collections.emptyList(), args.toArray());
+            for (int i = 0; i < attempts.size(); i++) {
+                attempts.get(i).result.complete(((Number) results.get(i)).longValue());
+            }
+        } catch (Exception e) {
+            log.error("批量秒杀失败, voucherId={}, size={}", batch.voucherId, attempts.size(), e);
+            attempts.forEach(attempt -> attempt.result.completeExceptionally(e));
+        }
+        Meter current = meter;
+        current.batches.increment();
+        current.attempts.add(attempts.size());
+        current.batchRate.record(1);
+        current.attemptRate.record(attempts.size());
+    }
+
+    private static class Batch {
+        private final Long voucherId;
+        private final List<Attempt> attempts = new ArrayList<>();
+        private boolean closed;
+
+        private Batch(Long voucherId) {
+            this.voucherId = voucherId;
+        }
+    }
+
+    private static class Attempt {
+        private final String[] args;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        private Attempt(String[] args) {
+            this.args = args;
+        }
+    }
+
+    private static class Meter {
+        private final LongAdder batches = new LongAdder();
+        private final LongAdder attempts = new LongAdder();
+        private final LongAdder pending = new LongAdder();
+        private final RateMeter batchRate = new RateMeter(10);
+        private final RateMeter attemptRate = new RateMeter(10);
+        private final LatencyRecorder latency = new LatencyRecorder(10000);
+    }
+}
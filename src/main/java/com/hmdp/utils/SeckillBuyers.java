@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 秒杀的购买记录，用于一人一单
+ * set：用户id保存在集合seckill:order:券id中，百万用户占用几十MB
+ * bitmap：按用户id分块保存在seckill:order:券id:块号中，每块2^chunk-bits个用户，只有用到的块才会分配内存；
+ * 每一块按密度选择结构(和roaring bitmap相同的思路)：用户少时是保存块内偏移量的小集合，达到dense个用户后由脚本转换为位图，
+ * 连续的用户id每个用户只占1位，稀疏的大id每个用户仍然只占集合中的一个元素，不会为一个用户分配整块位图；
+ * id为负数或超过max-bitmap-id的用户保存在集合中
+ * 同一个用户总是使用同一种结构，秒杀进行中不要修改配置
+ */
+@Component
+public class SeckillBuyers {
+    private static final DefaultRedisScript<Long> BUYER_SCRIPT;
+
+    static {
+        BUYER_SCRIPT = new DefaultRedisScript<>();
+        BUYER_SCRIPT.setLocation(new ClassPathResource("seckill_buyer.lua"));
+        BUYER_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final boolean bitmap;
+    private final int chunkBits;
+    private final long chunkMask;
+    private final long maxBitmapId;
+    private final String dense;
+
+    public SeckillBuyers(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.seckill.buyers.type:set}") String type,
+                         @Value("${hmdp.seckill.buyers.chunk-bits:16}") int chunkBits,
+                         @Value("${hmdp.seckill.buyers.max-bitmap-id:2147483647}") long maxBitmapId) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.bitmap = "bitmap".equalsIgnoreCase(type);
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1L << chunkBits) - 1;
+        this.maxBitmapId = maxBitmapId;
+        //块内偏移量用intset保存，每个用户2~4字节，超过512个元素后Redis改用哈希表，每个用户几十字节；
+        //位图每块2^chunk-bits/8字节，用户数达到位图字节数的1/4(这时intset和位图一样大)或者512个时转换为位图
+        this.dense = String.valueOf(Math.max(1, Math.min(512, (1L << chunkBits) / 32)));
+    }
+
+    /**
+     * 位图块转换为位图的用户数，秒杀脚本使用
+     */
+    public String getDense() {
+        return dense;
+    }
+
+    /**
+     * 用户的购买记录保存在哪个key中
+     * @param orderKey 集合的key
+     */
+    public String keyOf(String orderKey, Long userId) {
+        return useBitmap(userId) ? orderKey + ":" + (userId >>> chunkBits) : orderKey;
+    }
+
+    /**
+     * 用户在位图中的偏移量，保存在集合中时为空字符串，秒杀脚本据此选择结构
+     */
+    public String offsetOf(Long userId) {
+        return useBitmap(userId) ? String.valueOf(userId & chunkMask) : "";
+    }
+
+    /**
+     * 记录用户
+     * @return 是否是新加入的用户
+     */
+    public boolean add(String orderKey, Long userId) {
+        if (useBitmap(userId)) {
+            Long added = stringRedisTemplate.execute(BUYER_SCRIPT, Collections.singletonList(keyOf(orderKey, userId)),
+                    offsetOf(userId), "add", dense);
+            return added != null && added > 0;
+        }
+        Long added = stringRedisTemplate.opsForSet().add(orderKey, userId.toString());
+        return added != null && added > 0;
+    }
+
+    /**
+     * 删除用户，下单失败时调用
+     */
+    public void remove(String orderKey, Long userId) {
+        if (useBitmap(userId)) {
+            stringRedisTemplate.execute(BUYER_SCRIPT, Collections.singletonList(keyOf(orderKey, userId)),
+                    offsetOf(userId), "remove", dense);
+        } else {
+            stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        }
+    }
+
+    /**
+     * 用户是否已经购买
+     */
+    public boolean contains(String orderKey, Long userId) {
+        if (useBitmap(userId)) {
+            Long bought = stringRedisTemplate.execute(BUYER_SCRIPT, Collections.singletonList(keyOf(orderKey, userId)),
+                    offsetOf(userId), "contains", dense);
+            return bought != null && bought == 1;
+        }
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(orderKey, userId.toString()));
+    }
+
+    /**
+     * 购买记录的所有key，包括集合和已经分配的位图块
+     * 位图块通过SCAN查找，只在下线时调用
+     */
+    public List<String> keysOf(String orderKey) {
+        List<String> keys = new ArrayList<>();
+        keys.add(orderKey);
+        ScanOptions options = ScanOptions.scanOptions().match(orderKey + ":*").count(1000).build();
+        stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+        return keys;
+    }
+
+    /**
+     * 购买人数
+     * @param keys keysOf返回的key，第一个是集合
+     */
+    public long count(List<String> keys) {
+        Long members = stringRedisTemplate.opsForSet().size(keys.get(0));
+        long count = members == null ? 0 : members;
+        for (int i = 1; i < keys.size(); i++) {
+            byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            //位图块可能还是集合
+            Long bits = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.type(key) == DataType.SET ? connection.sCard(key) : connection.bitCount(key));
+            count += bits == null ? 0 : bits;
+        }
+        return count;
+    }
+
+    private boolean useBitmap(Long userId) {
+        return bitmap && userId >= 0 && userId <= maxBitmapId;
+    }
+}
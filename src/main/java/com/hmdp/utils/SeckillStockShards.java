@@ -0,0 +1,216 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 热点秒杀券的分片库存
+ * 库存平均分到N个key：seckill:stock:{券id:i}，购买记录也按用户分到N个set：seckill:order:{券id:i}，
+ * 同一个分片的两个key使用相同的hash tag，在Redis集群中分布到不同的节点，不再集中在一个key上
+ * 用户固定属于hash(userId) % N号分片，一人一单只需要检查这一个分片的购买记录；
+ * 自己分片的库存用完后依次从其它分片扣减库存，再把用户加入自己分片的购买记录，加入失败说明并发重复下单，归还库存。
+ * 库存总是先扣减后放行，不会超卖
+ * 每个分片还有一份时间窗口seckill:window:{券id:i}，由SeckillActivator在上线时写入
+ */
+@Component
+public class SeckillStockShards {
+    /**
+     * 自己和其它分片都没有库存
+     */
+    public static final int SOLD_OUT = -1;
+    /**
+     * 已经购买过
+     */
+    public static final int DUPLICATE = -2;
+    /**
+     * 秒杀未开始
+     */
+    public static final int NOT_STARTED = -3;
+    /**
+     * 秒杀已经结束
+     */
+    public static final int ENDED = -4;
+    /**
+     * 还没有上线或者已经下线
+     */
+    public static final int NOT_ACTIVE = -5;
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillBuyers seckillBuyers;
+    //分片数在创建秒杀券时确定，之后不会变化
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate, SeckillBuyers seckillBuyers) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillBuyers = seckillBuyers;
+    }
+
+    /**
+     * 创建秒杀券时记录分片数，库存在上线时加载
+     * @param voucherId
+     * @param shards 分片数，大于1
+     */
+    public void setShards(Long voucherId, int shards) {
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+    }
+
+    /**
+     * 上线时把库存平均分到各个分片，再写入每个分片的时间窗口
+     * 已经存在的库存分片不覆盖，重复上线不会重置已经卖出的库存
+     * @param voucherId
+     * @param stock 总库存
+     * @param shards 分片数，大于1
+     * @param window 开始和结束时间
+     */
+    public void load(Long voucherId, int stock, int shards, Map<String, String> window) {
+        for (int i = 0; i < shards; i++) {
+            //余数分给前面的分片
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForHash().putAll(windowKey(voucherId, i), window);
+        }
+    }
+
+    /**
+     * 秒杀券在Redis中除购买记录以外的key，下线时删除
+     */
+    public List<String> keysOf(Long voucherId, int shards) {
+        List<String> keys = new ArrayList<>(shards * 2 + 1);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, i));
+            keys.add(windowKey(voucherId, i));
+        }
+        keys.add(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        return keys;
+    }
+
+    /**
+     * 下线后清除本地记录的分片数
+     */
+    public void forget(Long voucherId) {
+        shardCounts.remove(voucherId);
+    }
+
+    /**
+     * 秒杀券的分片数，没有分片时为1
+     */
+    public int shardsOf(Long voucherId) {
+        return shardCounts.computeIfAbsent(voucherId, id -> {
+            String shards = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + id);
+            return shards == null ? 1 : Integer.parseInt(shards);
+        });
+    }
+
+    /**
+     * 补充库存，平均加到各个分片
+     */
+    public void add(Long voucherId, int count) {
+        int shards = shardsOf(voucherId);
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, count);
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            int shardCount = count / shards + (i < count % shards ? 1 : 0);
+            if (shardCount > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), shardCount);
+            }
+        }
+    }
+
+    /**
+     * 扣减一个库存并记录用户
+     * @param now 当前时间(毫秒)，和时间窗口比较
+     * @return 扣减库存的分片，或者SOLD_OUT、DUPLICATE、NOT_STARTED、ENDED、NOT_ACTIVE
+     */
+    public int acquire(Long voucherId, Long userId, int shards, long now) {
+        int home = homeShard(userId, shards);
+        String orderKey = orderKey(voucherId, home);
+        //先尝试自己的分片，检查时间窗口和购买记录、扣减库存、记录用户在一个脚本中完成
+        Long result = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), windowKey(voucherId, home), seckillBuyers.keyOf(orderKey, userId)),
+                userId.toString(), String.valueOf(now), seckillBuyers.offsetOf(userId), seckillBuyers.getDense());
+        if (result == null) {
+            return DUPLICATE;
+        }
+        if (result.intValue() == 0) {
+            return home;
+        }
+        if (result.intValue() != 1) {
+            //脚本的返回值2~5对应DUPLICATE ~ NOT_ACTIVE
+            return -result.intValue();
+        }
+        //自己的分片没有库存，从其它分片扣减
+        for (int k = 1; k < shards; k++) {
+            int shard = (home + k) % shards;
+            Long taken = stringRedisTemplate.execute(SHARD_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, shard), windowKey(voucherId, shard)),
+                    userId.toString(), String.valueOf(now));
+            if (taken == null || taken.intValue() != 0) {
+                continue;
+            }
+            if (!seckillBuyers.add(orderKey, userId)) {
+                //同一个用户的并发请求已经下单，归还库存
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, shard));
+                return DUPLICATE;
+            }
+            return shard;
+        }
+        return SOLD_OUT;
+    }
+
+    /**
+     * 下单失败时归还库存并删除购买记录
+     * @param shard acquire返回的分片
+     */
+    public void release(Long voucherId, Long userId, int shard, int shards) {
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, shard));
+        seckillBuyers.remove(orderKey(voucherId, homeShard(userId, shards)), userId);
+    }
+
+    /**
+     * 用户的购买记录所在的key，没有分片时是seckill:order:券id
+     */
+    public String buyerOrderKey(Long voucherId, Long userId) {
+        int shards = shardsOf(voucherId);
+        if (shards <= 1) {
+            return RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        }
+        return orderKey(voucherId, homeShard(userId, shards));
+    }
+
+    private static int homeShard(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId), shards);
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String windowKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_WINDOW_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+}
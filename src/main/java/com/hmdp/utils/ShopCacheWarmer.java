@@ -0,0 +1,246 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 启动预热：按商铺类型并行，每个类型按id游标分批读取tb_shop，
+ * 每批一次GEOADD写入shop:geo:类型，一次pipeline写入逻辑过期的商铺缓存，同时构建进程内的空间索引和名称索引
+ * 在ApplicationRunner中同步执行，预热结束后Spring Boot才会把节点标记为可接收流量(ReadinessState.ACCEPTING_TRAFFIC)；
+ * 失败时按退避时间重试max-attempts次，仍然失败时节点保持未就绪，由后台线程继续重试直到成功
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements ApplicationRunner {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClientUtil cacheClientUtil;
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.warmup.threads:4}")
+    private int threads;
+    @Value("${hmdp.warmup.batch-size:1000}")
+    private int batchSize;
+    @Value("${hmdp.warmup.cache-shops:true}")
+    private boolean cacheShops;
+    @Value("${hmdp.warmup.max-attempts:3}")
+    private int maxAttempts;
+    @Value("${hmdp.warmup.retry-millis:5000}")
+    private long retryMillis;
+
+    //ready表示有一次预热成功、节点可以接收流量，预热是否完整看failed和loadedRows
+    private volatile boolean ready;
+    private volatile boolean failed;
+    private volatile long totalRows;
+    private final AtomicLong loadedRows = new AtomicLong();
+    private final AtomicInteger finishedTypes = new AtomicInteger();
+    private volatile int totalTypes;
+    private volatile long beginMillis;
+    private volatile long costMillis;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            ready = true;
+            return;
+        }
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (tryWarmUp(attempt)) {
+                return;
+            }
+            if (!sleep(retryMillis * attempt)) {
+                return;
+            }
+        }
+        //预热失败不影响启动，节点保持未就绪，缓存未命中时仍然可以查询数据库
+        Thread thread = new Thread(() -> {
+            int attempt = maxAttempts;
+            while (!ready && sleep(retryMillis * maxAttempts)) {
+                tryWarmUp(++attempt);
+            }
+        }, "shop-cache-warmer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean tryWarmUp(int attempt) {
+        try {
+            warmUp();
+            return true;
+        } catch (Exception e) {
+            log.error("商铺缓存预热失败，第{}次", attempt, e);
+            return false;
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 全量预热商铺的GEO索引和缓存，成功后节点标记为就绪
+     */
+    public void warmUp() throws Exception {
+        beginMillis = System.currentTimeMillis();
+        costMillis = 0;
+        failed = false;
+        loadedRows.set(0);
+        finishedTypes.set(0);
+        try {
+            doWarmUp();
+        } catch (Exception e) {
+            failed = true;
+            costMillis = System.currentTimeMillis() - beginMillis;
+            throw e;
+        }
+        ready = true;
+    }
+
+    private void doWarmUp() throws Exception {
+        totalRows = shopService.count();
+        List<Object> typeIds = shopService.listObjs(new QueryWrapper<Shop>().select("DISTINCT type_id"));
+        totalTypes = typeIds.size();
+        log.info("开始预热商铺缓存，商铺数量：{}，类型数量：{}", totalRows, totalTypes);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, totalTypes)));
+        try {
+            List<Future<?>> futures = new ArrayList<>(typeIds.size());
+            for (Object typeId : typeIds) {
+                long type = ((Number) typeId).longValue();
+                futures.add(executor.submit(() -> warmUpType(type)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        //全量加载完成后才使用空间索引和名称索引，之前的查询走Redis和数据库
+        shopGeoIndex.markReady();
+        shopNameIndex.markReady();
+        costMillis = System.currentTimeMillis() - beginMillis;
+        log.info("商铺缓存预热完成，共{}条，耗时{}ms，{}条/秒", loadedRows.get(), costMillis, getRowsPerSecond());
+    }
+
+    private void warmUpType(long typeId) {
+        String geoKey = RedisConstants.SHOP_GEO_KEY + typeId;
+        long lastId = 0;
+        while (true) {
+            //按(type_id, id)游标分页，每页都走索引，不会随着页数增加变慢
+            List<Shop> shops = shopService.list(new QueryWrapper<Shop>()
+                    .eq("type_id", typeId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + batchSize));
+            if (shops.isEmpty()) {
+                break;
+            }
+            Map<String, Point> locations = new HashMap<>(shops.size() * 2);
+            Map<String, Shop> cacheValues = new HashMap<>(shops.size() * 2);
+            for (Shop shop : shops) {
+                if (shop.getX() != null && shop.getY() != null) {
+                    locations.put(shop.getId().toString(), new Point(shop.getX(), shop.getY()));
+                }
+                cacheValues.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            shopGeoIndex.putAllLocal(typeId, shops);
+            shopNameIndex.putAllLocal(shops);
+            //一批只需要一次GEOADD
+            if (!locations.isEmpty()) {
+                stringRedisTemplate.opsForGeo().add(geoKey, locations);
+            }
+            if (cacheShops) {
+                cacheClientUtil.setAllWithLogicalExpire(cacheValues, RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS, false);
+            }
+            long loaded = loadedRows.addAndGet(shops.size());
+            log.debug("商铺缓存预热进度：{}/{}，类型：{}", loaded, totalRows, typeId);
+            if (shops.size() < batchSize) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        log.info("商铺类型{}预热完成，已完成类型：{}/{}", typeId, finishedTypes.incrementAndGet(), totalTypes);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 最近一次预热是否失败，失败时只加载了一部分数据，空间索引和名称索引不会启用
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * 预热是否完整：没有失败，并且加载的行数达到预热开始时的总行数
+     */
+    public boolean isComplete() {
+        return ready && !failed && loadedRows.get() >= totalRows;
+    }
+
+    public long getLoadedRows() {
+        return loadedRows.get();
+    }
+
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    /**
+     * 预热速度，进行中时按已经过的时间计算
+     */
+    public long getRowsPerSecond() {
+        long millis = costMillis > 0 ? costMillis : System.currentTimeMillis() - beginMillis;
+        return millis <= 0 ? 0 : loadedRows.get() * 1000 / millis;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("failed", failed);
+        stats.put("complete", isComplete());
+        stats.put("loadedRows", loadedRows.get());
+        stats.put("totalRows", totalRows);
+        stats.put("finishedTypes", finishedTypes.get());
+        stats.put("totalTypes", totalTypes);
+        stats.put("costMillis", costMillis);
+        stats.put("rowsPerSecond", getRowsPerSecond());
+        return stats;
+    }
+}
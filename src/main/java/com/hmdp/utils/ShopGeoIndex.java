@@ -0,0 +1,387 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的商铺空间索引，每个商铺类型一个网格索引
+ * 经纬度按固定角度切分成网格，从查询点所在的格子开始一圈一圈向外扫描，
+ * 已经找到足够的结果并且下一圈的最近距离不小于当前第K个结果时停止；
+ * 支持按(上一页最后的距离, 上一页最后的id)继续查询，跳过整圈都在游标之前的格子，深页只扫描游标附近的格子
+ * 启动预热时从tb_shop构建，商铺新增和修改时通过Redis发布订阅同步到所有节点
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex implements MessageListener {
+    //和Redis GEO使用相同的地球半径，距离结果一致
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS;
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final double cellDegrees;
+    private final Map<Long, TypeIndex> indexes = new ConcurrentHashMap<>();
+    //全量构建完成之前不使用索引，查询走Redis
+    private volatile boolean ready;
+
+    public ShopGeoIndex(StringRedisTemplate stringRedisTemplate,
+                        @Value("${hmdp.geo.cell-degrees:0.01}") double cellDegrees) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cellDegrees = cellDegrees;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void markReady() {
+        this.ready = true;
+    }
+
+    /**
+     * 批量加入同一个类型的商铺，只修改当前节点的索引，全量构建时使用
+     * 同一个格子的商铺一次复制完成，避免逐个加入时反复复制数组
+     * @param typeId
+     * @param shops
+     */
+    public void putAllLocal(Long typeId, List<Shop> shops) {
+        TypeIndex index = indexes.computeIfAbsent(typeId, k -> new TypeIndex());
+        List<Shop> located = new ArrayList<>(shops.size());
+        for (Shop shop : shops) {
+            if (shop.getX() == null || shop.getY() == null) {
+                continue;
+            }
+            //重新构建时商铺可能已经换了类型
+            for (Map.Entry<Long, TypeIndex> entry : indexes.entrySet()) {
+                if (!entry.getKey().equals(typeId)) {
+                    entry.getValue().remove(shop.getId());
+                }
+            }
+            located.add(shop);
+        }
+        index.putAll(located);
+    }
+
+    /**
+     * 新增或者移动商铺，并通知其它节点
+     * @param shop 需要包含类型和坐标
+     */
+    public void put(Shop shop) {
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        putLocal(shop.getTypeId(), shop.getId(), shop.getX(), shop.getY());
+        broadcast("put:" + shop.getTypeId() + ":" + shop.getId() + ":" + shop.getX() + ":" + shop.getY());
+    }
+
+    /**
+     * 删除商铺，并通知其它节点
+     * @param shopId
+     */
+    public void remove(Long shopId) {
+        removeLocal(shopId);
+        broadcast("remove:" + shopId);
+    }
+
+    /**
+     * 按距离从近到远查询
+     * @param typeId 商铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param radius 半径(米)
+     * @param limit 最多返回的数量
+     * @param lastDistance 上一页最后一个商铺的距离，第一页为null
+     * @param lastId 上一页最后一个商铺的id，第一页为null
+     * @return 距离在游标之后的商铺，按(距离, id)排序
+     */
+    public List<Hit> search(Long typeId, double x, double y, double radius, int limit, Double lastDistance, Long lastId) {
+        TypeIndex index = indexes.get(typeId);
+        if (index == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        //游标需要距离和id同时存在
+        if (lastDistance == null || lastId == null) {
+            lastDistance = null;
+            lastId = null;
+        }
+        return index.search(x, y, radius, limit, lastDistance, lastId);
+    }
+
+    public int size(Long typeId) {
+        TypeIndex index = indexes.get(typeId);
+        return index == null ? 0 : index.locations.size();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+        //自己发出的消息，本地已经处理过了
+        if (NODE_ID.equals(parts[0])) {
+            return;
+        }
+        if ("put".equals(parts[1])) {
+            putLocal(Long.valueOf(parts[2]), Long.valueOf(parts[3]), Double.parseDouble(parts[4]), Double.parseDouble(parts[5]));
+        } else if ("remove".equals(parts[1])) {
+            removeLocal(Long.valueOf(parts[2]));
+        }
+    }
+
+    private void putLocal(Long typeId, Long shopId, double x, double y) {
+        //类型变化时从原来的类型中删除
+        for (Map.Entry<Long, TypeIndex> entry : indexes.entrySet()) {
+            if (!entry.getKey().equals(typeId)) {
+                entry.getValue().remove(shopId);
+            }
+        }
+        indexes.computeIfAbsent(typeId, k -> new TypeIndex()).put(shopId, x, y);
+    }
+
+    private void removeLocal(Long shopId) {
+        indexes.values().forEach(index -> index.remove(shopId));
+    }
+
+    private void broadcast(String body) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SHOP_GEO_SYNC_CHANNEL, NODE_ID + ":" + body);
+        } catch (Exception e) {
+            log.error("广播商铺位置变化失败, {}", body, e);
+        }
+    }
+
+    private long cellX(double x) {
+        return (long) Math.floor(x / cellDegrees);
+    }
+
+    private long cellY(double y) {
+        return (long) Math.floor(y / cellDegrees);
+    }
+
+    private static long cellKey(long cx, long cy) {
+        return (cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 和Redis GEO相同的haversine公式
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    /**
+     * 查询结果：商铺id和距离(米)
+     */
+    public static class Hit {
+        private final long id;
+        private final double distance;
+
+        public Hit(long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+    }
+
+    private static final Comparator<Hit> ORDER = Comparator.comparingDouble(Hit::getDistance).thenComparingLong(Hit::getId);
+
+    /**
+     * 一个格子中的商铺，写时复制，读不需要加锁
+     */
+    private static class Cell {
+        private final long[] ids;
+        private final double[] xs;
+        private final double[] ys;
+
+        Cell(long[] ids, double[] xs, double[] ys) {
+            this.ids = ids;
+            this.xs = xs;
+            this.ys = ys;
+        }
+    }
+
+    /**
+     * 一个商铺类型的网格
+     */
+    private class TypeIndex {
+        private final Map<Long, Cell> cells = new ConcurrentHashMap<>();
+        //商铺所在的格子，移动和删除时使用
+        private final Map<Long, Long> locations = new ConcurrentHashMap<>();
+        //有商铺的格子范围，扫描超过这个范围就停止
+        private volatile long minCellX = Long.MAX_VALUE;
+        private volatile long maxCellX = Long.MIN_VALUE;
+        private volatile long minCellY = Long.MAX_VALUE;
+        private volatile long maxCellY = Long.MIN_VALUE;
+
+        synchronized void put(long id, double x, double y) {
+            removeFromCell(id);
+            long cx = cellX(x);
+            long cy = cellY(y);
+            long key = cellKey(cx, cy);
+            Cell old = cells.get(key);
+            int n = old == null ? 0 : old.ids.length;
+            long[] ids = old == null ? new long[1] : Arrays.copyOf(old.ids, n + 1);
+            double[] xs = old == null ? new double[1] : Arrays.copyOf(old.xs, n + 1);
+            double[] ys = old == null ? new double[1] : Arrays.copyOf(old.ys, n + 1);
+            ids[n] = id;
+            xs[n] = x;
+            ys[n] = y;
+            cells.put(key, new Cell(ids, xs, ys));
+            locations.put(id, key);
+            minCellX = Math.min(minCellX, cx);
+            maxCellX = Math.max(maxCellX, cx);
+            minCellY = Math.min(minCellY, cy);
+            maxCellY = Math.max(maxCellY, cy);
+        }
+
+        synchronized void putAll(List<Shop> shops) {
+            Map<Long, List<Shop>> byCell = new HashMap<>();
+            for (Shop shop : shops) {
+                removeFromCell(shop.getId());
+                long cx = cellX(shop.getX());
+                long cy = cellY(shop.getY());
+                byCell.computeIfAbsent(cellKey(cx, cy), k -> new ArrayList<>()).add(shop);
+                minCellX = Math.min(minCellX, cx);
+                maxCellX = Math.max(maxCellX, cx);
+                minCellY = Math.min(minCellY, cy);
+                maxCellY = Math.max(maxCellY, cy);
+            }
+            byCell.forEach((key, added) -> {
+                Cell old = cells.get(key);
+                int n = old == null ? 0 : old.ids.length;
+                long[] ids = old == null ? new long[added.size()] : Arrays.copyOf(old.ids, n + added.size());
+                double[] xs = old == null ? new double[added.size()] : Arrays.copyOf(old.xs, n + added.size());
+                double[] ys = old == null ? new double[added.size()] : Arrays.copyOf(old.ys, n + added.size());
+                for (Shop shop : added) {
+                    ids[n] = shop.getId();
+                    xs[n] = shop.getX();
+                    ys[n] = shop.getY();
+                    locations.put(shop.getId(), key);
+                    n++;
+                }
+                cells.put(key, new Cell(ids, xs, ys));
+            });
+        }
+
+        synchronized void remove(long id) {
+            removeFromCell(id);
+        }
+
+        private void removeFromCell(long id) {
+            Long key = locations.remove(id);
+            if (key == null) {
+                return;
+            }
+            Cell old = cells.get(key);
+            if (old == null) {
+                return;
+            }
+            int n = old.ids.length;
+            if (n == 1) {
+                cells.remove(key);
+                return;
+            }
+            long[] ids = new long[n - 1];
+            double[] xs = new double[n - 1];
+            double[] ys = new double[n - 1];
+            int j = 0;
+            for (int i = 0; i < n; i++) {
+                if (old.ids[i] != id) {
+                    ids[j] = old.ids[i];
+                    xs[j] = old.xs[i];
+                    ys[j] = old.ys[i];
+                    j++;
+                }
+            }
+            cells.put(key, new Cell(ids, xs, ys));
+        }
+
+        List<Hit> search(double x, double y, double radius, int limit, Double lastDistance, Long lastId) {
+            long cx = cellX(x);
+            long cy = cellY(y);
+            //格子在查询点纬度处的宽和高(米)，乘以0.99抵消格子之间纬度不同带来的误差
+            double cellHeight = cellDegrees * METERS_PER_DEGREE;
+            double cellWidth = cellHeight * Math.cos(Math.toRadians(y));
+            double minSide = Math.min(cellWidth, cellHeight) * 0.99;
+            double diagonal = Math.hypot(cellWidth, cellHeight) * 1.01;
+            //第r圈中的点距离不小于(r-1)*minSide，不大于(r+1)*diagonal
+            int startRing = 0;
+            if (lastDistance != null) {
+                startRing = (int) Math.max(0, Math.floor(lastDistance / diagonal) - 1);
+            }
+            long maxRing = Math.max(Math.max(cx - minCellX, maxCellX - cx), Math.max(cy - minCellY, maxCellY - cy));
+            maxRing = Math.min(maxRing, (long) Math.ceil(radius / minSide) + 1);
+            //距离最大的在堆顶，保留最近的limit个
+            PriorityQueue<Hit> heap = new PriorityQueue<>(limit + 1, ORDER.reversed());
+            for (long r = startRing; r <= maxRing; r++) {
+                double lowerBound = Math.max(0, r - 1) * minSide;
+                if (lowerBound > radius) {
+                    break;
+                }
+                if (heap.size() == limit && heap.peek().getDistance() <= lowerBound) {
+                    break;
+                }
+                for (long dx = -r; dx <= r; dx++) {
+                    //只有第一行和最后一行需要遍历整行，中间的行只取两端
+                    long step = (dx == -r || dx == r) ? 1 : Math.max(1, 2 * r);
+                    for (long dy = -r; dy <= r; dy += step) {
+                        Cell cell = cells.get(cellKey(cx + dx, cy + dy));
+                        if (cell != null) {
+                            collect(cell, x, y, radius, limit, lastDistance, lastId, heap);
+                        }
+                    }
+                }
+            }
+            List<Hit> hits = new ArrayList<>(heap);
+            hits.sort(ORDER);
+            return hits;
+        }
+
+        private void collect(Cell cell, double x, double y, double radius, int limit,
+                             Double lastDistance, Long lastId, PriorityQueue<Hit> heap) {
+            for (int i = 0; i < cell.ids.length; i++) {
+                double d = distance(x, y, cell.xs[i], cell.ys[i]);
+                if (d > radius) {
+                    continue;
+                }
+                //游标之前的已经返回过
+                if (lastDistance != null && (d < lastDistance || (d == lastDistance && cell.ids[i] <= lastId))) {
+                    continue;
+                }
+                Hit hit = new Hit(cell.ids[i], d);
+                if (heap.size() < limit) {
+                    heap.offer(hit);
+                } else if (ORDER.compare(hit, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.offer(hit);
+                }
+            }
+        }
+    }
+}
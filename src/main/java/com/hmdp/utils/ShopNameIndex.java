@@ -0,0 +1,470 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.lang.UUID;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 进程内的商铺名称倒排索引，按单字和相邻两个字建立n-gram，中文不需要分词
+ * 查询时取关键词的所有二元组(只有一个字时取单字)对应的倒排表求交集，再确认关键词确实连续出现，
+ * 按匹配的字段和位置打分，同分时按评分和销量排序
+ * 每个商铺版本对应一个递增的文档号，修改时旧文档标记删除、新文档追加到末尾，倒排表始终有序，
+ * 删除的文档超过一半时整体压缩
+ * 启动预热时从tb_shop构建，商铺新增、修改和删除时通过Redis发布订阅同步到所有节点
+ */
+@Slf4j
+@Component
+public class ShopNameIndex implements MessageListener {
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+    //名称命中的得分高于地区和地址，名称以关键词开头、完全相同时再加分
+    private static final int NAME_MATCH = 100;
+    private static final int NAME_PREFIX = 50;
+    private static final int NAME_EXACT = 50;
+    private static final int AREA_MATCH = 20;
+    private static final int ADDRESS_MATCH = 10;
+    //删除的文档少于这个数量时不压缩
+    private static final int COMPACT_MIN_DELETED = 10000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ShopMapper shopMapper;
+    //地址比名称长得多，建索引会使倒排表数量翻几倍，默认不开启
+    private final boolean indexAddress;
+    //最多可以翻到的结果数
+    private final int maxResults;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LatencyRecorder latency = new LatencyRecorder(10000);
+    //全量构建完成之前不使用索引，查询走数据库
+    private volatile boolean ready;
+
+    //以下字段由lock保护
+    private long[] shopIds = new long[1024];
+    private String[] names = new String[1024];
+    private String[] areas = new String[1024];
+    private String[] addresses = new String[1024];
+    private int[] scores = new int[1024];
+    private int[] solds = new int[1024];
+    private int docCount;
+    private final BitSet deleted = new BitSet();
+    private int deletedCount;
+    private final Map<Long, Integer> docOf = new HashMap<>();
+    private final Map<Integer, Postings> postings = new HashMap<>();
+
+    public ShopNameIndex(StringRedisTemplate stringRedisTemplate, ShopMapper shopMapper,
+                         @Value("${hmdp.search.index-address:false}") boolean indexAddress,
+                         @Value("${hmdp.search.max-results:1000}") int maxResults) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.shopMapper = shopMapper;
+        this.indexAddress = indexAddress;
+        this.maxResults = maxResults;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void markReady() {
+        this.ready = true;
+    }
+
+    /**
+     * 批量加入商铺，只修改当前节点的索引，全量构建时使用
+     * @param shops
+     */
+    public void putAllLocal(List<Shop> shops) {
+        lock.writeLock().lock();
+        try {
+            for (Shop shop : shops) {
+                putDoc(shop);
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 新增或者修改商铺，并通知其它节点
+     * @param shop 完整的商铺信息
+     */
+    public void put(Shop shop) {
+        putLocal(shop);
+        broadcast("put:" + shop.getId());
+    }
+
+    /**
+     * 删除商铺，并通知其它节点
+     * @param shopId
+     */
+    public void remove(Long shopId) {
+        removeLocal(shopId);
+        broadcast("remove:" + shopId);
+    }
+
+    /**
+     * 按关键词查询商铺
+     * @param keyword 关键词，匹配名称、地区，开启后也匹配地址
+     * @param offset 跳过的数量
+     * @param limit 最多返回的数量
+     * @return 按相关度排序的商铺id
+     */
+    public List<Long> search(String keyword, int offset, int limit) {
+        long begin = System.nanoTime();
+        try {
+            String query = normalize(keyword);
+            limit = Math.min(limit, maxResults - offset);
+            if (query.isEmpty() || offset < 0 || limit <= 0) {
+                return new ArrayList<>();
+            }
+            lock.readLock().lock();
+            try {
+                return doSearch(query, offset, limit);
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            latency.record(System.nanoTime() - begin);
+        }
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            stats.put("search.ready", ready ? 1L : 0L);
+            stats.put("search.docs", (long) docOf.size());
+            stats.put("search.deletedDocs", (long) deletedCount);
+            stats.put("search.grams", (long) postings.size());
+            long entries = 0;
+            for (Postings list : postings.values()) {
+                entries += list.size;
+            }
+            stats.put("search.postings", entries);
+        } finally {
+            lock.readLock().unlock();
+        }
+        stats.putAll(latency.getStats("search.latency"));
+        return stats;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+        //自己发出的消息，本地已经处理过了
+        if (NODE_ID.equals(parts[0])) {
+            return;
+        }
+        Long shopId = Long.valueOf(parts[2]);
+        if ("put".equals(parts[1])) {
+            //名称和地址可能包含任意字符，消息中只传id，从数据库读取最新的数据
+            Shop shop = shopMapper.selectById(shopId);
+            if (shop != null) {
+                putLocal(shop);
+            } else {
+                removeLocal(shopId);
+            }
+        } else if ("remove".equals(parts[1])) {
+            removeLocal(shopId);
+        }
+    }
+
+    private void putLocal(Shop shop) {
+        lock.writeLock().lock();
+        try {
+            putDoc(shop);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocal(Long shopId) {
+        lock.writeLock().lock();
+        try {
+            removeDoc(shopId);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void broadcast(String body) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SHOP_NAME_SYNC_CHANNEL, NODE_ID + ":" + body);
+        } catch (Exception e) {
+            log.error("广播商铺名称变化失败, {}", body, e);
+        }
+    }
+
+    private List<Long> doSearch(String query, int offset, int limit) {
+        Set<Integer> grams = new HashSet<>();
+        if (query.length() == 1) {
+            grams.add((int) query.charAt(0));
+        } else {
+            for (int i = 0; i + 1 < query.length(); i++) {
+                grams.add(bigram(query.charAt(i), query.charAt(i + 1)));
+            }
+        }
+        List<Postings> lists = new ArrayList<>(grams.size());
+        for (Integer gram : grams) {
+            Postings list = postings.get(gram);
+            if (list == null) {
+                return new ArrayList<>();
+            }
+            lists.add(list);
+        }
+        //从最短的倒排表开始，依次在其它倒排表中向后查找
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        Postings shortest = lists.get(0);
+        int[] positions = new int[lists.size()];
+        int top = offset + limit;
+        //得分最低的在堆顶，保留前top个
+        PriorityQueue<Match> heap = new PriorityQueue<>(top + 1, ORDER.reversed());
+        for (int i = 0; i < shortest.size; i++) {
+            int doc = shortest.docs[i];
+            if (!containsAll(lists, positions, doc) || deleted.get(doc)) {
+                continue;
+            }
+            int relevance = relevance(doc, query);
+            //n-gram都出现但关键词不连续
+            if (relevance == 0) {
+                continue;
+            }
+            long rank = rank(relevance, scores[doc], solds[doc]);
+            if (heap.size() < top) {
+                heap.offer(new Match(rank, shopIds[doc]));
+            } else if (before(rank, shopIds[doc], heap.peek())) {
+                heap.poll();
+                heap.offer(new Match(rank, shopIds[doc]));
+            }
+        }
+        List<Match> matches = new ArrayList<>(heap);
+        matches.sort(ORDER);
+        List<Long> ids = new ArrayList<>(limit);
+        for (int i = offset; i < matches.size(); i++) {
+            ids.add(matches.get(i).shopId);
+        }
+        return ids;
+    }
+
+    /**
+     * 文档号递增，每个倒排表的查找位置只需要向后移动
+     */
+    private static boolean containsAll(List<Postings> lists, int[] positions, int doc) {
+        for (int j = 1; j < lists.size(); j++) {
+            Postings list = lists.get(j);
+            int index = Arrays.binarySearch(list.docs, positions[j], list.size, doc);
+            if (index < 0) {
+                positions[j] = -index - 1;
+                return false;
+            }
+            positions[j] = index + 1;
+        }
+        return true;
+    }
+
+    private int relevance(int doc, String query) {
+        int relevance = 0;
+        String name = names[doc];
+        if (name.contains(query)) {
+            relevance += NAME_MATCH;
+            if (name.startsWith(query)) {
+                relevance += NAME_PREFIX;
+            }
+            if (name.length() == query.length()) {
+                relevance += NAME_EXACT;
+            }
+        }
+        if (areas[doc].contains(query)) {
+            relevance += AREA_MATCH;
+        }
+        if (indexAddress && addresses[doc].contains(query)) {
+            relevance += ADDRESS_MATCH;
+        }
+        return relevance;
+    }
+
+    /**
+     * 相关度、评分、销量拼成一个long，依次比较，评分和销量超过上限时按上限计算
+     */
+    private static long rank(int relevance, int score, int sold) {
+        long s = Math.max(0, Math.min(score, 0xFFFF));
+        long n = Math.max(0, Math.min(sold, 0xFFFFFFFFL));
+        return ((long) relevance << 48) | (s << 32) | n;
+    }
+
+    /**
+     * 排在堆顶之前的才需要创建对象放入堆中，大部分结果只比较一次
+     */
+    private static boolean before(long rank, long shopId, Match top) {
+        return rank > top.rank || (rank == top.rank && shopId < top.shopId);
+    }
+
+    private void putDoc(Shop shop) {
+        removeDoc(shop.getId());
+        int doc = docCount++;
+        ensureCapacity(docCount);
+        shopIds[doc] = shop.getId();
+        names[doc] = normalize(shop.getName());
+        areas[doc] = normalize(shop.getArea());
+        addresses[doc] = indexAddress ? normalize(shop.getAddress()) : "";
+        scores[doc] = shop.getScore() == null ? 0 : shop.getScore();
+        solds[doc] = shop.getSold() == null ? 0 : shop.getSold();
+        docOf.put(shop.getId(), doc);
+        addPostings(doc);
+    }
+
+    private void addPostings(int doc) {
+        Set<Integer> grams = new HashSet<>();
+        addGrams(names[doc], grams);
+        addGrams(areas[doc], grams);
+        addGrams(addresses[doc], grams);
+        for (Integer gram : grams) {
+            postings.computeIfAbsent(gram, k -> new Postings()).add(doc);
+        }
+    }
+
+    private void removeDoc(Long shopId) {
+        Integer doc = docOf.remove(shopId);
+        if (doc == null) {
+            return;
+        }
+        deleted.set(doc);
+        deletedCount++;
+        names[doc] = null;
+        areas[doc] = null;
+        addresses[doc] = null;
+    }
+
+    /**
+     * 删除的文档超过一半时，按原来的顺序重新编号并重建倒排表
+     */
+    private void compactIfNeeded() {
+        if (deletedCount < COMPACT_MIN_DELETED || deletedCount * 2 < docCount) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        int live = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            if (deleted.get(doc)) {
+                continue;
+            }
+            shopIds[live] = shopIds[doc];
+            names[live] = names[doc];
+            areas[live] = areas[doc];
+            addresses[live] = addresses[doc];
+            scores[live] = scores[doc];
+            solds[live] = solds[doc];
+            docOf.put(shopIds[live], live);
+            live++;
+        }
+        Arrays.fill(names, live, docCount, null);
+        Arrays.fill(areas, live, docCount, null);
+        Arrays.fill(addresses, live, docCount, null);
+        docCount = live;
+        deleted.clear();
+        deletedCount = 0;
+        postings.clear();
+        for (int doc = 0; doc < docCount; doc++) {
+            addPostings(doc);
+        }
+        log.info("商铺名称索引压缩完成，文档数：{}，耗时{}ms", docCount, System.currentTimeMillis() - begin);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= shopIds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, shopIds.length * 2);
+        shopIds = Arrays.copyOf(shopIds, newCapacity);
+        names = Arrays.copyOf(names, newCapacity);
+        areas = Arrays.copyOf(areas, newCapacity);
+        addresses = Arrays.copyOf(addresses, newCapacity);
+        scores = Arrays.copyOf(scores, newCapacity);
+        solds = Arrays.copyOf(solds, newCapacity);
+    }
+
+    private static void addGrams(String text, Set<Integer> grams) {
+        for (int i = 0; i < text.length(); i++) {
+            grams.add((int) text.charAt(i));
+            if (i + 1 < text.length()) {
+                grams.add(bigram(text.charAt(i), text.charAt(i + 1)));
+            }
+        }
+    }
+
+    /**
+     * 两个字符拼成一个int，第一个字符不为0，不会和单字冲突
+     */
+    private static int bigram(char first, char second) {
+        return (first << 16) | second;
+    }
+
+    /**
+     * 全角转半角、转小写，去掉空白和标点
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String dbc = Convert.toDBC(text).toLowerCase();
+        StringBuilder sb = new StringBuilder(dbc.length());
+        for (int i = 0; i < dbc.length(); i++) {
+            char c = dbc.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class Match {
+        private final long rank;
+        private final long shopId;
+
+        Match(long rank, long shopId) {
+            this.rank = rank;
+            this.shopId = shopId;
+        }
+    }
+
+    /**
+     * 得分高的在前，相同时按id保证翻页稳定
+     */
+    private static final Comparator<Match> ORDER = Comparator.comparingLong((Match m) -> -m.rank).thenComparingLong(m -> m.shopId);
+
+    /**
+     * 一个n-gram的倒排表，文档号递增
+     */
+    private static class Postings {
+        private int[] docs = new int[4];
+        private int size;
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+    }
+}
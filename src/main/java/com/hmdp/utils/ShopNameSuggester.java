@@ -0,0 +1,330 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 商铺名称的前缀补全
+ * 所有名称归一化后排序，拼接保存在一个char数组中，字典树的每个节点对应排序后的一段连续区间，
+ * 按前缀二分查找即可得到区间，不需要保存节点对象；
+ * 区间较大的节点预先计算权重最高的K个名称，较小的区间查询时直接扫描
+ * 权重 = 销量 + 评分 * score-weight，同名商铺取最大的权重
+ * 后台线程定期从tb_shop全量重建，构建完成后整体替换引用，读不加锁
+ */
+@Slf4j
+@Component
+public class ShopNameSuggester {
+    //区间不超过这个数量时查询时扫描，超过时预先计算
+    private static final int SCAN_LIMIT = 256;
+
+    private final ShopMapper shopMapper;
+    private final int topK;
+    private final int scoreWeight;
+    private final long rebuildSeconds;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+    private final LatencyRecorder latency = new LatencyRecorder(10000);
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private volatile long lastBuildMillis;
+
+    public ShopNameSuggester(ShopMapper shopMapper,
+                             @Value("${hmdp.suggest.top-k:10}") int topK,
+                             @Value("${hmdp.suggest.score-weight:100}") int scoreWeight,
+                             @Value("${hmdp.suggest.rebuild-seconds:300}") long rebuildSeconds,
+                             @Value("${hmdp.suggest.batch-size:5000}") int batchSize) {
+        this.shopMapper = shopMapper;
+        this.topK = topK;
+        this.scoreWeight = scoreWeight;
+        this.rebuildSeconds = rebuildSeconds;
+        this.batchSize = batchSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "shop-suggest-builder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void init() {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                //继续使用旧的字典树，等待下一次重建
+                log.error("重建商铺名称补全失败", e);
+            }
+        }, 0, rebuildSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 查询以prefix开头、权重最高的商铺名称
+     * @param prefix 用户已经输入的内容
+     * @param limit 最多返回的数量，不超过top-k
+     * @return 按权重从高到低，首次构建完成之前返回空列表
+     */
+    public List<String> suggest(String prefix, int limit) {
+        long begin = System.nanoTime();
+        try {
+            String key = ShopNameIndex.normalize(prefix);
+            if (key.isEmpty() || limit <= 0) {
+                return Collections.emptyList();
+            }
+            return snapshot.suggest(key, Math.min(limit, topK));
+        } finally {
+            latency.record(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 从tb_shop全量构建，完成后替换
+     */
+    public void rebuild() {
+        long begin = System.currentTimeMillis();
+        //同名商铺合并，保留权重最大的一个
+        Map<String, Entry> entries = new HashMap<>();
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "name", "sold", "score")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + batchSize));
+            for (Shop shop : shops) {
+                String key = ShopNameIndex.normalize(shop.getName());
+                if (key.isEmpty()) {
+                    continue;
+                }
+                long weight = weightOf(shop);
+                Entry old = entries.get(key);
+                if (old == null || old.weight < weight) {
+                    entries.put(key, new Entry(key, shop.getName(), weight));
+                }
+            }
+            if (shops.size() < batchSize) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort((a, b) -> a.key.compareTo(b.key));
+        snapshot = new Snapshot(sorted, topK);
+        lastBuildMillis = System.currentTimeMillis() - begin;
+        log.info("商铺名称补全重建完成，名称数量：{}，耗时{}ms", sorted.size(), lastBuildMillis);
+    }
+
+    public Map<String, Long> getStats() {
+        Snapshot current = snapshot;
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("suggest.names", (long) current.size);
+        stats.put("suggest.precomputedNodes", (long) current.precomputed.size());
+        stats.put("suggest.memoryBytes", current.memoryBytes());
+        stats.put("suggest.build.ms", lastBuildMillis);
+        stats.putAll(latency.getStats("suggest.latency"));
+        return stats;
+    }
+
+    private long weightOf(Shop shop) {
+        long sold = shop.getSold() == null ? 0 : shop.getSold();
+        long score = shop.getScore() == null ? 0 : shop.getScore();
+        return sold + score * scoreWeight;
+    }
+
+    private static class Entry {
+        private final String key;
+        private final String name;
+        private final long weight;
+
+        Entry(String key, String name, long weight) {
+            this.key = key;
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 一次构建的结果，构建完成后不再修改
+     */
+    private static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyList(), 0);
+
+        private final int size;
+        //归一化后的名称，按字典序排列，第i个是keys[keyOffsets[i], keyOffsets[i + 1])
+        private final char[] keys;
+        private final int[] keyOffsets;
+        //原始名称，返回给用户
+        private final char[] names;
+        private final int[] nameOffsets;
+        private final long[] weights;
+        //区间超过SCAN_LIMIT的前缀 -> 权重最高的K个名称的下标
+        private final Map<String, int[]> precomputed = new HashMap<>();
+
+        Snapshot(List<Entry> sorted, int topK) {
+            size = sorted.size();
+            keyOffsets = new int[size + 1];
+            nameOffsets = new int[size + 1];
+            weights = new long[size];
+            int keyLength = 0;
+            int nameLength = 0;
+            for (Entry entry : sorted) {
+                keyLength += entry.key.length();
+                nameLength += entry.name.length();
+            }
+            keys = new char[keyLength];
+            names = new char[nameLength];
+            for (int i = 0; i < size; i++) {
+                Entry entry = sorted.get(i);
+                entry.key.getChars(0, entry.key.length(), keys, keyOffsets[i]);
+                keyOffsets[i + 1] = keyOffsets[i] + entry.key.length();
+                entry.name.getChars(0, entry.name.length(), names, nameOffsets[i]);
+                nameOffsets[i + 1] = nameOffsets[i] + entry.name.length();
+                weights[i] = entry.weight;
+            }
+            precompute(topK);
+        }
+
+        /**
+         * 逐层找出区间超过SCAN_LIMIT的节点，某一层没有这样的节点时，更深的层也不会有
+         */
+        private void precompute(int topK) {
+            boolean found = true;
+            for (int depth = 1; found; depth++) {
+                found = false;
+                int i = 0;
+                while (i < size) {
+                    if (length(i) < depth) {
+                        i++;
+                        continue;
+                    }
+                    int j = i + 1;
+                    while (j < size && length(j) >= depth && samePrefix(i, j, depth)) {
+                        j++;
+                    }
+                    if (j - i > SCAN_LIMIT) {
+                        precomputed.put(new String(keys, keyOffsets[i], depth), top(i, j, topK));
+                        found = true;
+                    }
+                    i = j;
+                }
+            }
+        }
+
+        List<String> suggest(String prefix, int limit) {
+            int from = bound(prefix, false);
+            int to = bound(prefix, true);
+            if (from >= to) {
+                return Collections.emptyList();
+            }
+            int[] top = precomputed.get(prefix);
+            if (top == null) {
+                top = top(from, to, limit);
+            }
+            List<String> result = new ArrayList<>(Math.min(limit, top.length));
+            for (int i = 0; i < top.length && i < limit; i++) {
+                result.add(new String(names, nameOffsets[top[i]], nameOffsets[top[i] + 1] - nameOffsets[top[i]]));
+            }
+            return result;
+        }
+
+        /**
+         * 区间中权重最高的k个，权重相同时字典序在前的优先
+         */
+        private int[] top(int from, int to, int k) {
+            //权重最小的在堆顶
+            PriorityQueue<Integer> heap = new PriorityQueue<>(k + 1,
+                    (a, b) -> weights[a] != weights[b] ? Long.compare(weights[a], weights[b]) : Integer.compare(b, a));
+            for (int i = from; i < to; i++) {
+                if (heap.size() < k) {
+                    heap.offer(i);
+                } else if (weights[i] > weights[heap.peek()]) {
+                    heap.poll();
+                    heap.offer(i);
+                }
+            }
+            int[] top = new int[heap.size()];
+            for (int i = top.length - 1; i >= 0; i--) {
+                top[i] = heap.poll();
+            }
+            return top;
+        }
+
+        /**
+         * 二分查找以prefix开头的区间的边界
+         * @param upper false时返回第一个不小于prefix的下标，true时返回第一个截断后大于prefix的下标
+         */
+        private int bound(String prefix, boolean upper) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int cmp = comparePrefix(mid, prefix);
+                if (cmp < 0 || (upper && cmp == 0)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 第i个名称截断到prefix的长度后和prefix比较
+         */
+        private int comparePrefix(int i, String prefix) {
+            int start = keyOffsets[i];
+            int n = Math.min(length(i), prefix.length());
+            for (int k = 0; k < n; k++) {
+                char c = keys[start + k];
+                char p = prefix.charAt(k);
+                if (c != p) {
+                    return c - p;
+                }
+            }
+            return n == prefix.length() ? 0 : -1;
+        }
+
+        private boolean samePrefix(int i, int j, int depth) {
+            for (int k = 0; k < depth; k++) {
+                if (keys[keyOffsets[i] + k] != keys[keyOffsets[j] + k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int length(int i) {
+            return keyOffsets[i + 1] - keyOffsets[i];
+        }
+
+        long memoryBytes() {
+            long bytes = (long) keys.length * 2 + (long) names.length * 2
+                    + (long) (keyOffsets.length + nameOffsets.length) * 4 + (long) weights.length * 8;
+            for (Map.Entry<String, int[]> entry : precomputed.entrySet()) {
+                bytes += entry.getKey().length() * 2L + entry.getValue().length * 4L;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并：同一个JVM内同一个key的并发加载共享一个future
+ * 跨节点时没拿到Redis锁的节点等待重建完成的发布订阅通知，而不是休眠轮询
+ */
+@Component
+@Slf4j
+public class SingleFlight implements MessageListener {
+    private final StringRedisTemplate stringRedisTemplate;
+    //正在进行的加载
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    //等待其它节点重建完成的通知
+    private final Map<String, CompletableFuture<Void>> remoteWaiters = new ConcurrentHashMap<>();
+
+    //正在等待的线程数
+    private final AtomicInteger waitingThreads = new AtomicInteger();
+    //被合并的请求数
+    private final LongAdder collapsedCount = new LongAdder();
+    //实际执行加载的次数
+    private final LongAdder leaderCount = new LongAdder();
+    //等待其它节点重建的次数和超时次数
+    private final LongAdder remoteWaitCount = new LongAdder();
+    private final LongAdder remoteTimeoutCount = new LongAdder();
+
+    public SingleFlight(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 同一个key同一时间只执行一次loader，其它线程等待并共享结果
+     * @param key
+     * @param loader
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            //已经有线程在加载，等待它的结果
+            collapsedCount.increment();
+            waitingThreads.incrementAndGet();
+            try {
+                return (T) existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            } finally {
+                waitingThreads.decrementAndGet();
+            }
+        }
+        leaderCount.increment();
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 注册对其它节点重建完成的等待，要在检查锁之前注册，避免错过通知
+     * @param key
+     * @return
+     */
+    public CompletableFuture<Void> registerRemoteWait(String key) {
+        return remoteWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }
+
+    public void cancelRemoteWait(String key, CompletableFuture<Void> waiter) {
+        remoteWaiters.remove(key, waiter);
+    }
+
+    /**
+     * 等待其它节点重建完成
+     * @return 收到通知返回true，超时返回false
+     */
+    public boolean awaitRemote(String key, CompletableFuture<Void> waiter, long timeout, TimeUnit unit) {
+        remoteWaitCount.increment();
+        waitingThreads.incrementAndGet();
+        try {
+            waiter.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            remoteTimeoutCount.increment();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            waitingThreads.decrementAndGet();
+            remoteWaiters.remove(key, waiter);
+        }
+    }
+
+    /**
+     * 重建完成，通知所有节点上等待的线程
+     * @param key
+     */
+    public void publishRebuilt(String key) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_REBUILT_CHANNEL, key);
+        } catch (Exception e) {
+            //通知失败时等待方会在超时后重新竞争锁
+            log.error("发送缓存重建完成通知失败, key={}", key, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        CompletableFuture<Void> waiter = remoteWaiters.remove(key);
+        if (waiter != null) {
+            waiter.complete(null);
+        }
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("singleflight.inflight", (long) inFlight.size());
+        stats.put("singleflight.waiting", (long) waitingThreads.get());
+        stats.put("singleflight.leader", leaderCount.sum());
+        stats.put("singleflight.collapsed", collapsedCount.sum());
+        stats.put("singleflight.remote.wait", remoteWaitCount.sum());
+        stats.put("singleflight.remote.timeout", remoteTimeoutCount.sum());
+        return stats;
+    }
+}
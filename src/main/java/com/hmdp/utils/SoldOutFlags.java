@@ -0,0 +1,113 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀优惠券的本地售罄标记
+ * 秒杀脚本返回库存不足后标记售罄，并通过Redis发布订阅通知其它节点，之后的请求直接拒绝，不再执行脚本；
+ * 补充库存时清除标记。发布订阅的消息可能丢失，标记只保留一小段时间，过期后重新由脚本判断
+ */
+@Slf4j
+@Component
+public class SoldOutFlags implements MessageListener {
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long ttlMillis;
+    //优惠券id -> 标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    private final Map<Long, LongAdder> rejected = new ConcurrentHashMap<>();
+
+    public SoldOutFlags(StringRedisTemplate stringRedisTemplate,
+                        @Value("${hmdp.seckill.sold-out-ttl-seconds:5}") long ttlSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
+
+    /**
+     * 判断优惠券是否已经售罄，售罄时记录一次拒绝
+     * @param voucherId
+     * @return true表示售罄，直接拒绝
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        rejected.computeIfAbsent(voucherId, k -> new LongAdder()).increment();
+        return true;
+    }
+
+    /**
+     * 标记售罄，并通知其它节点
+     * @param voucherId
+     */
+    public void markSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long old = soldOut.put(voucherId, now + ttlMillis);
+        //已经标记过的不重复广播
+        if (old == null || old < now) {
+            broadcast("soldout:" + voucherId);
+        }
+    }
+
+    /**
+     * 补充库存后清除标记，并通知其它节点
+     * @param voucherId
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        broadcast("clear:" + voucherId);
+    }
+
+    /**
+     * 每个优惠券被本地拒绝的请求数
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        stats.put("soldout.flags", soldOut.values().stream().filter(expireAt -> expireAt >= now).count());
+        rejected.forEach((voucherId, count) -> stats.put("soldout.rejected." + voucherId, count.sum()));
+        return stats;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+        //自己发出的消息，本地已经处理过了
+        if (NODE_ID.equals(parts[0])) {
+            return;
+        }
+        Long voucherId = Long.valueOf(parts[2]);
+        if ("soldout".equals(parts[1])) {
+            soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis);
+        } else if ("clear".equals(parts[1])) {
+            soldOut.remove(voucherId);
+        }
+    }
+
+    private void broadcast(String body) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, NODE_ID + ":" + body);
+        } catch (Exception e) {
+            log.error("广播售罄标记失败, {}", body, e);
+        }
+    }
+}
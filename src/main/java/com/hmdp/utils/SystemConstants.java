@@ -5,4 +5,8 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final int MAX_BATCH_SIZE = 100;
+    public static final double DEFAULT_SEARCH_RADIUS = 5000;
+    public static final double MAX_SEARCH_RADIUS = 50000;
+    public static final int MAX_GEO_FETCH = 1000;
 }
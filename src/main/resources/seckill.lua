@@ -7,24 +7,75 @@
 local voucherId = ARGV[1]
 local userId = ARGV[2]
 local orderId = ARGV[3]
+-- 订单写入的队列，分区时为stream.orders.{n}
+local streamKey = ARGV[4] or 'stream.orders'
+-- 应用节点的当前时间(毫秒)
+local now = tonumber(ARGV[5])
+-- 购买记录的key和位图偏移量，偏移量为空时使用集合
+local buyerKey = ARGV[6] or ('seckill:order:' .. voucherId)
+local offset = ARGV[7] or ''
+-- 订单状态的存活时间(秒)
+local statusTtl = ARGV[8]
+-- 位图块还是集合时，达到这个用户数后转换为位图
+local dense = tonumber(ARGV[9] or '512')
 
 local stockKey = 'seckill:stock:' .. voucherId
-local orderKey = 'seckill:order:' .. voucherId
+local windowKey = 'seckill:window:' .. voucherId
 
+-- 判断秒杀是否在进行中
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (not window[1]) then
+    -- 还没有上线或者已经下线，返回5
+    return 5
+end
+if (now < tonumber(window[1])) then
+    -- 秒杀未开始，返回3
+    return 3
+end
+if (now > tonumber(window[2])) then
+    -- 秒杀已经结束，返回4
+    return 4
+end
 -- 判断库存是否充足
 if (tonumber(redis.call('get',stockKey)) <= 0) then
     --库存不足，返回1
     return 1
 end
--- 判断是否存在订单
-if (redis.call('sismember',orderKey,userId)==1) then
+-- 判断是否存在订单，位图块在用户少时是保存偏移量的集合
+local isBitmap = offset ~= '' and redis.call('type', buyerKey).ok == 'string'
+local bought
+if (offset == '') then
+    bought = redis.call('sismember', buyerKey, userId)
+elseif (isBitmap) then
+    bought = redis.call('getbit', buyerKey, offset)
+else
+    bought = redis.call('sismember', buyerKey, offset)
+end
+if (bought == 1) then
     -- 已经存在订单，返回2
     return 2
 end
 -- 进行库存的扣减和下单
 redis.call('incrby',stockKey,-1)
 -- 进行订单的保存，确保一人一单
-redis.call('sadd',orderKey,userId)
+if (offset == '') then
+    redis.call('sadd', buyerKey, userId)
+elseif (isBitmap) then
+    redis.call('setbit', buyerKey, offset, 1)
+else
+    redis.call('sadd', buyerKey, offset)
+    if (redis.call('scard', buyerKey) >= dense) then
+        local offsets = redis.call('smembers', buyerKey)
+        redis.call('del', buyerKey)
+        for _, o in ipairs(offsets) do
+            redis.call('setbit', buyerKey, o, 1)
+        end
+    end
+end
 -- 发送消息到队列中
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId);
+redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId);
+-- 记录订单状态，消费者处理后更新
+if (statusTtl) then
+    redis.call('set', 'seckill:status:' .. orderId, userId .. ':QUEUED', 'EX', statusTtl)
+end
 return 0
@@ -0,0 +1,90 @@
+---
+--- 批量秒杀脚本，同一个优惠券的多个请求在一次调用中判断，按顺序返回每个请求的结果
+--- ARGV[1]: 优惠券id
+--- ARGV[2]: 应用节点的当前时间(毫秒)
+--- ARGV[3]: 订单状态的存活时间(秒)
+--- ARGV[4]: 位图块还是集合时，达到这个用户数后转换为位图
+--- 之后每个请求5个参数：用户id、订单id、订单队列、购买记录的key、位图偏移量(为空时使用集合)
+--- 返回值和seckill.lua相同：0成功，1库存不足，2重复下单，3未开始，4已经结束，5没有上线
+---
+
+local voucherId = ARGV[1]
+local now = tonumber(ARGV[2])
+local statusTtl = ARGV[3]
+local dense = tonumber(ARGV[4])
+local count = (#ARGV - 4) / 5
+
+local stockKey = 'seckill:stock:' .. voucherId
+local windowKey = 'seckill:window:' .. voucherId
+
+local results = {}
+-- 判断秒杀是否在进行中，整批的结果相同
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+local closed
+if (not window[1]) then
+    closed = 5
+elseif (now < tonumber(window[1])) then
+    closed = 3
+elseif (now > tonumber(window[2])) then
+    closed = 4
+end
+if (closed) then
+    for i = 1, count do
+        results[i] = closed
+    end
+    return results
+end
+
+local stock = tonumber(redis.call('get', stockKey)) or 0
+local taken = 0
+for i = 1, count do
+    local base = 4 + (i - 1) * 5
+    local userId = ARGV[base + 1]
+    local orderId = ARGV[base + 2]
+    local streamKey = ARGV[base + 3]
+    local buyerKey = ARGV[base + 4]
+    local offset = ARGV[base + 5]
+    if (stock - taken <= 0) then
+        -- 库存不足
+        results[i] = 1
+    else
+        -- 位图块在用户少时是保存偏移量的集合
+        local isBitmap = offset ~= '' and redis.call('type', buyerKey).ok == 'string'
+        local bought
+        if (offset == '') then
+            bought = redis.call('sismember', buyerKey, userId)
+        elseif (isBitmap) then
+            bought = redis.call('getbit', buyerKey, offset)
+        else
+            bought = redis.call('sismember', buyerKey, offset)
+        end
+        if (bought == 1) then
+            -- 已经存在订单，同一批中重复的用户也会在这里拒绝
+            results[i] = 2
+        else
+            taken = taken + 1
+            if (offset == '') then
+                redis.call('sadd', buyerKey, userId)
+            elseif (isBitmap) then
+                redis.call('setbit', buyerKey, offset, 1)
+            else
+                redis.call('sadd', buyerKey, offset)
+                if (redis.call('scard', buyerKey) >= dense) then
+                    local offsets = redis.call('smembers', buyerKey)
+                    redis.call('del', buyerKey)
+                    for _, o in ipairs(offsets) do
+                        redis.call('setbit', buyerKey, o, 1)
+                    end
+                end
+            end
+            redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+            redis.call('set', 'seckill:status:' .. orderId, userId .. ':QUEUED', 'EX', statusTtl)
+            results[i] = 0
+        end
+    end
+end
+-- 整批只扣减一次库存
+if (taken > 0) then
+    redis.call('incrby', stockKey, -taken)
+end
+return results
@@ -0,0 +1,41 @@
+---
+--- 购买记录的位图块：用户还少时是保存偏移量的集合，达到dense个用户后转换为位图，稀疏的块不会分配整块位图
+--- KEYS[1]: 位图块
+--- ARGV[1]: 用户在块中的偏移量
+--- ARGV[2]: add记录用户，返回1表示新加入；remove删除用户；contains判断是否存在
+--- ARGV[3]: 转换为位图的用户数
+---
+
+local key = KEYS[1]
+local offset = ARGV[1]
+local op = ARGV[2]
+local dense = tonumber(ARGV[3])
+
+local isBitmap = redis.call('type', key).ok == 'string'
+if (op == 'contains') then
+    if (isBitmap) then
+        return redis.call('getbit', key, offset)
+    end
+    return redis.call('sismember', key, offset)
+end
+if (op == 'remove') then
+    if (isBitmap) then
+        redis.call('setbit', key, offset, 0)
+    else
+        redis.call('srem', key, offset)
+    end
+    return 0
+end
+-- 记录用户
+if (isBitmap) then
+    return 1 - redis.call('setbit', key, offset, 1)
+end
+local added = redis.call('sadd', key, offset)
+if (redis.call('scard', key) >= dense) then
+    local offsets = redis.call('smembers', key)
+    redis.call('del', key)
+    for _, o in ipairs(offsets) do
+        redis.call('setbit', key, o, 1)
+    end
+end
+return added
@@ -0,0 +1,71 @@
+---
+--- 分片库存的秒杀脚本，KEYS使用相同的hash tag，在集群中属于同一个分片
+--- KEYS[1]: 库存分片
+--- KEYS[2]: 分片的时间窗口
+--- KEYS[3]: 用户所在分片的购买记录，集合或者位图块，不传时只扣减库存
+--- ARGV[3]: 用户在位图块中的偏移量，为空时KEYS[3]是集合
+--- ARGV[4]: 位图块还是集合时，达到这个用户数后转换为位图
+---
+
+local stockKey = KEYS[1]
+local windowKey = KEYS[2]
+local orderKey = KEYS[3]
+local userId = ARGV[1]
+local now = tonumber(ARGV[2])
+local offset = ARGV[3] or ''
+local dense = tonumber(ARGV[4] or '512')
+
+-- 判断秒杀是否在进行中
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (not window[1]) then
+    -- 还没有上线或者已经下线，返回5
+    return 5
+end
+if (now < tonumber(window[1])) then
+    -- 秒杀未开始，返回3
+    return 3
+end
+if (now > tonumber(window[2])) then
+    -- 秒杀已经结束，返回4
+    return 4
+end
+-- 判断是否存在订单，位图块在用户少时是保存偏移量的集合
+local isBitmap = orderKey and offset ~= '' and redis.call('type', orderKey).ok == 'string'
+if (orderKey) then
+    local bought
+    if (offset == '') then
+        bought = redis.call('sismember', orderKey, userId)
+    elseif (isBitmap) then
+        bought = redis.call('getbit', orderKey, offset)
+    else
+        bought = redis.call('sismember', orderKey, offset)
+    end
+    if (bought == 1) then
+        -- 已经存在订单，返回2
+        return 2
+    end
+end
+-- 判断分片的库存是否充足
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    -- 分片库存不足，返回1
+    return 1
+end
+-- 进行库存的扣减
+redis.call('incrby', stockKey, -1)
+-- 进行订单的保存，确保一人一单
+if (orderKey and offset == '') then
+    redis.call('sadd', orderKey, userId)
+elseif (isBitmap) then
+    redis.call('setbit', orderKey, offset, 1)
+elseif (orderKey) then
+    redis.call('sadd', orderKey, offset)
+    if (redis.call('scard', orderKey) >= dense) then
+        local offsets = redis.call('smembers', orderKey)
+        redis.call('del', orderKey)
+        for _, o in ipairs(offsets) do
+            redis.call('setbit', orderKey, o, 1)
+        end
+    end
+end
+return 0
@@ -1,43 +1,32 @@
 package com.hmdp;
 
-import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ShopCacheWarmer;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.data.geo.Point;
-import org.springframework.data.redis.core.StringRedisTemplate;
 
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
     @Autowired
     private ShopServiceImpl shopService;
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private ShopCacheWarmer shopCacheWarmer;
 
     @Test
     void testSaveShop() throws InterruptedException {
         shopService.saveShop2Redis(1L,10L);
     }
     @Test
-    void loadShopData(){
-        //首先查询店铺信息
-        List<Shop> shopList = shopService.list();
-        //根据shoplist的type进行分类
-        Map<Long, List<Shop>> map = shopList.stream().collect(Collectors.groupingBy(Shop::getTypeId));
-        for (Map.Entry<Long, List<Shop>> entry : map.entrySet()) {
-            //遍历，放入到Redis
-            String key = RedisConstants.SHOP_GEO_KEY +entry.getKey();
-            List<Shop> value = entry.getValue();//获取同类型的店铺集合
-            //遍历value,放入到Redis
-            for (Shop shop : value) {
-                stringRedisTemplate.opsForGeo().add(key,new Point(shop.getX(),shop.getY()),shop.getId().toString());
-            }
-        }
+    void loadShopData() throws Exception {
+        shopCacheWarmer.warmUp();
+        assertTrue(shopCacheWarmer.isReady());
+        assertFalse(shopCacheWarmer.isFailed());
+        assertEquals(shopCacheWarmer.getTotalRows(), shopCacheWarmer.getLoadedRows());
+        assertTrue(shopCacheWarmer.isComplete());
     }
 }
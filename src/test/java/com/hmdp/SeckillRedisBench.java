@@ -0,0 +1,378 @@
+package com.hmdp;
+
+import com.hmdp.utils.LatencyRecorder;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillActivator;
+import com.hmdp.utils.SeckillBatcher;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillStockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀相关的Redis基准测试，会写入大量数据，只在手动指定时运行，结束后删除写入的key
+ * 连接application.yaml中配置的Redis，配置spring.redis.cluster.nodes后连接集群
+ * 运行：mvn test -Dtest=SeckillRedisBench -Dhmdp.bench=true
+ */
+@Slf4j
+@Tag("bench")
+@EnabledIfSystemProperty(named = "hmdp.bench", matches = "true")
+@SpringBootTest
+class SeckillRedisBench {
+    //基准测试使用的优惠券id，不会和真实的优惠券冲突
+    private static final long BENCH_VOUCHER_ID = 900_000_000L;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private SeckillStockShards seckillStockShards;
+    @Autowired
+    private SeckillBuyers seckillBuyers;
+    @Autowired
+    private SeckillActivator seckillActivator;
+    @Autowired
+    private SeckillBatcher seckillBatcher;
+
+    /**
+     * 对比单个库存key和分片库存的吞吐量
+     * 两种方式都使用seckill_shard.lua，分片数为1时所有请求集中在一个key上，和不分片的秒杀券相同；
+     * 单机Redis上两者的差别只有脚本内的竞争，分片的优势要在集群上才能体现，分片会分布到不同的节点
+     * 参数：-Dhmdp.bench.threads=64 -Dhmdp.bench.stock=100000 -Dhmdp.bench.shards=8
+     */
+    @Test
+    void compareStockShards() throws Exception {
+        int threads = Integer.getInteger("hmdp.bench.threads", 64);
+        int stock = Integer.getInteger("hmdp.bench.stock", 100000);
+        int shardCount = Integer.getInteger("hmdp.bench.shards", 8);
+        //请求数比库存多20%，覆盖库存用完后从其它分片扣减和售罄的情况
+        long attempts = stock + stock / 5;
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", "0");
+        window.put("end", String.valueOf(Long.MAX_VALUE));
+        for (int shards : new int[]{1, shardCount}) {
+            long voucherId = BENCH_VOUCHER_ID + shards;
+            cleanUp(voucherId, shards, attempts);
+            seckillStockShards.load(voucherId, stock, shards, window);
+            AtomicLong nextUserId = new AtomicLong(1);
+            LongAdder acquired = new LongAdder();
+            LatencyRecorder latency = new LatencyRecorder(100000);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            long begin = System.nanoTime();
+            try {
+                List<Future<?>> futures = new ArrayList<>(threads);
+                for (int i = 0; i < threads; i++) {
+                    futures.add(executor.submit(() -> {
+                        long userId;
+                        while ((userId = nextUserId.getAndIncrement()) <= attempts) {
+                            long t = System.nanoTime();
+                            int shard = seckillStockShards.acquire(voucherId, userId, shards, System.currentTimeMillis());
+                            latency.record(System.nanoTime() - t);
+                            if (shard >= 0) {
+                                acquired.increment();
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            long millis = Math.max(1, (System.nanoTime() - begin) / 1_000_000);
+            log.info("{}个分片：{}次请求，{}ms，{}次/秒，{}", shards, attempts, millis, attempts * 1000 / millis,
+                    latency.getStats("acquire.latency"));
+            //不超卖也不少卖
+            assertEquals(stock, acquired.sum());
+            cleanUp(voucherId, shards, attempts);
+        }
+    }
+
+    /**
+     * 对比不同批次窗口的吞吐量和延迟，窗口为0时每个请求单独执行seckill.lua，和关闭微批时相同
+     * 库存和请求数相同，每个请求都走完扣减库存、记录购买和写入订单队列的完整路径；订单写入单独的队列，不会被订单消费者处理
+     * seckill.lua和seckill_batch.lua的key不在同一个slot，只能在单机Redis上运行
+     * 参数：-Dhmdp.bench.threads=100 -Dhmdp.bench.attempts=200000 -Dhmdp.bench.windows=0,100,250,500,1000
+     */
+    @Test
+    void compareBatchWindows() throws Exception {
+        int threads = Integer.getInteger("hmdp.bench.threads", 100);
+        int attempts = Integer.getInteger("hmdp.bench.attempts", 200000);
+        String[] windows = System.getProperty("hmdp.bench.windows", "0,100,250,500,1000").split(",");
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("seckill.lua"));
+        script.setResultType(Long.class);
+        String streamKey = "bench:stream.orders";
+        String statusTtl = "600";
+        long original = (Long) seckillBatcher.getStats().get("admission.window.micros");
+        try {
+            for (int w = 0; w < windows.length; w++) {
+                long windowMicros = Long.parseLong(windows[w].trim());
+                long voucherId = BENCH_VOUCHER_ID + 100 + w;
+                String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+                //订单id按优惠券分段，清理时按范围计算状态的key
+                long orderBase = voucherId * 1_000_000L;
+                cleanUpBatch(voucherId, orderKey, streamKey, orderBase, attempts);
+                stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(attempts));
+                Map<String, String> window = new HashMap<>(2);
+                window.put("begin", "0");
+                window.put("end", String.valueOf(Long.MAX_VALUE));
+                stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_WINDOW_KEY + voucherId, window);
+                seckillBatcher.setWindowMicros(windowMicros);
+                AtomicLong nextUserId = new AtomicLong(1);
+                LongAdder acquired = new LongAdder();
+                LongAdder pending = new LongAdder();
+                LatencyRecorder latency = new LatencyRecorder(100000);
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                long begin = System.nanoTime();
+                try {
+                    List<Future<?>> futures = new ArrayList<>(threads);
+                    for (int i = 0; i < threads; i++) {
+                        futures.add(executor.submit(() -> {
+                            long userId;
+                            while ((userId = nextUserId.getAndIncrement()) <= attempts) {
+                                long orderId = orderBase + userId;
+                                String buyerKey = seckillBuyers.keyOf(orderKey, userId);
+                                String offset = seckillBuyers.offsetOf(userId);
+                                long t = System.nanoTime();
+                                Long result;
+                                if (windowMicros > 0) {
+                                    result = seckillBatcher.admit(voucherId, userId, orderId, streamKey, buyerKey, offset);
+                                } else {
+                                    result = stringRedisTemplate.execute(script, Collections.emptyList(),
+                                            String.valueOf(voucherId), String.valueOf(userId), String.valueOf(orderId),
+                                            streamKey, String.valueOf(System.currentTimeMillis()), buyerKey, offset,
+                                            statusTtl, seckillBuyers.getDense());
+                                }
+                                latency.record(System.nanoTime() - t);
+                                if (result == SeckillBatcher.PENDING) {
+                                    pending.increment();
+                                } else if (result == 0) {
+                                    acquired.increment();
+                                }
+                            }
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+                long millis = Math.max(1, (System.nanoTime() - begin) / 1_000_000);
+                Map<String, Long> stats = seckillBatcher.getStats();
+                log.info("批次窗口{}微秒：{}次请求，{}ms，{}次/秒，平均每批{}个，{}", windowMicros, attempts, millis,
+                        attempts * 1000L / millis, windowMicros > 0 ? stats.get("admission.batch.avg.size") : 1,
+                        latency.getStats("seckill.latency"));
+                //每个用户只请求一次，库存和请求数相同，全部成功；等待超时的请求已经交给Redis，也已经成功
+                assertEquals(attempts, acquired.sum() + pending.sum());
+                assertEquals("0", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+                cleanUpBatch(voucherId, orderKey, streamKey, orderBase, attempts);
+            }
+        } finally {
+            seckillBatcher.setWindowMicros(original);
+        }
+    }
+
+    /**
+     * 删除批次窗口测试写入的库存、时间窗口、购买记录、订单队列和订单状态
+     */
+    private void cleanUpBatch(long voucherId, String orderKey, String streamKey, long orderBase, int users) {
+        Set<String> keys = new LinkedHashSet<>();
+        keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+        keys.add(RedisConstants.SECKILL_WINDOW_KEY + voucherId);
+        keys.add(orderKey);
+        keys.add(streamKey);
+        for (long userId = 1; userId <= users; userId++) {
+            keys.add(seckillBuyers.keyOf(orderKey, userId));
+            keys.add(RedisConstants.SECKILL_STATUS_KEY + (orderBase + userId));
+            if (keys.size() >= 10000) {
+                stringRedisTemplate.delete(keys);
+                keys.clear();
+            }
+        }
+        stringRedisTemplate.delete(keys);
+    }
+
+    /**
+     * 对比集合和按密度分块的购买记录占用的内存和查询延迟
+     * 连续id：用户id为1~n，位图块都是稠密的；稀疏id：n个用户随机分布在[1, 2^31)，每块只有几十个用户，块保持为小集合
+     * 分块的数据按脚本转换后的最终结构直接写入：达到dense个用户的块写位图，其它块写偏移量集合；转换过程由单独一块验证
+     * 参数：-Dhmdp.bench.buyers=1000000,10000000
+     */
+    @Test
+    void compareBuyerTracking() {
+        int chunkBits = 16;
+        SeckillBuyers buyers = new SeckillBuyers(stringRedisTemplate, "bitmap", chunkBits, Integer.MAX_VALUE);
+        verifyChunkConversion(buyers);
+        String[] sizes = System.getProperty("hmdp.bench.buyers", "1000000,10000000").split(",");
+        for (String size : sizes) {
+            int n = Integer.parseInt(size.trim());
+            long[] sequential = new long[n];
+            for (int i = 0; i < n; i++) {
+                sequential[i] = i + 1;
+            }
+            compareBuyerTracking(buyers, "sequential", sequential, chunkBits);
+        }
+        int n = Integer.parseInt(sizes[0].trim());
+        compareBuyerTracking(buyers, "sparse", new Random(3).longs(n, 1, 1L << 31).distinct().sorted().toArray(), chunkBits);
+    }
+
+    private void compareBuyerTracking(SeckillBuyers buyers, String name, long[] ids, int chunkBits) {
+        String setKey = "bench:buyers:set:" + name + ":" + ids.length;
+        String orderKey = "bench:buyers:chunks:" + name + ":" + ids.length;
+        int dense = Integer.parseInt(buyers.getDense());
+        //按块分组，ids已经排好序，同一块的用户连续
+        Map<String, List<Long>> chunks = new LinkedHashMap<>();
+        for (long id : ids) {
+            chunks.computeIfAbsent(buyers.keyOf(orderKey, id), k -> new ArrayList<>()).add(id);
+        }
+        for (int from = 0; from < ids.length; from += 10000) {
+            int begin = from;
+            int end = Math.min(ids.length, from + 10000);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                String[] members = new String[end - begin];
+                for (int i = begin; i < end; i++) {
+                    members[i - begin] = String.valueOf(ids[i]);
+                }
+                ((StringRedisConnection) connection).sAdd(setKey, members);
+                return null;
+            });
+        }
+        List<Map.Entry<String, List<Long>>> entries = new ArrayList<>(chunks.entrySet());
+        for (int from = 0; from < entries.size(); from += 100) {
+            List<Map.Entry<String, List<Long>>> page = entries.subList(from, Math.min(entries.size(), from + 100));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Map.Entry<String, List<Long>> chunk : page) {
+                    if (chunk.getValue().size() >= dense) {
+                        for (Long id : chunk.getValue()) {
+                            conn.setBit(chunk.getKey(), Long.parseLong(buyers.offsetOf(id)), true);
+                        }
+                    } else {
+                        conn.sAdd(chunk.getKey(), chunk.getValue().stream().map(buyers::offsetOf).toArray(String[]::new));
+                    }
+                }
+                return null;
+            });
+        }
+        List<String> chunkKeys = new ArrayList<>(chunks.keySet());
+        List<String> countKeys = new ArrayList<>(chunkKeys.size() + 1);
+        countKeys.add(orderKey);
+        countKeys.addAll(chunkKeys);
+        try {
+            assertEquals(ids.length, buyers.count(countKeys));
+            long setBytes = seckillActivator.memoryUsage(setKey);
+            long chunkBytes = 0;
+            for (String key : chunkKeys) {
+                chunkBytes += seckillActivator.memoryUsage(key);
+            }
+            //每块都分配位图时的大小，只计算不写入
+            long bitmapBytes = (long) chunkKeys.size() << (chunkBits - 3);
+            //一半查询已经购买的用户，一半查询没有购买的用户
+            LatencyRecorder setLatency = new LatencyRecorder(10000);
+            LatencyRecorder chunkLatency = new LatencyRecorder(10000);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long maxId = ids[ids.length - 1] * 2;
+            for (int i = 0; i < 10000; i++) {
+                boolean bought = i % 2 == 0;
+                long id;
+                if (bought) {
+                    id = ids[random.nextInt(ids.length)];
+                } else {
+                    //取一个不在ids中的id
+                    id = random.nextLong(1, maxId);
+                    while (Arrays.binarySearch(ids, id) >= 0) {
+                        id++;
+                    }
+                }
+                long t = System.nanoTime();
+                Boolean inSet = stringRedisTemplate.opsForSet().isMember(setKey, String.valueOf(id));
+                setLatency.record(System.nanoTime() - t);
+                t = System.nanoTime();
+                boolean inChunks = buyers.contains(orderKey, id);
+                chunkLatency.record(System.nanoTime() - t);
+                assertEquals(bought, inSet);
+                assertEquals(bought, inChunks);
+            }
+            log.info("{} {}个用户：集合{}字节 {}，分块{}个key {}字节 {}，全部使用位图{}字节", name, ids.length,
+                    setBytes, setLatency.getStats("sismember"), chunkKeys.size(), chunkBytes,
+                    chunkLatency.getStats("chunk"), bitmapBytes);
+        } finally {
+            stringRedisTemplate.delete(setKey);
+            stringRedisTemplate.delete(chunkKeys);
+        }
+    }
+
+    /**
+     * 通过脚本逐个加入同一块的用户，达到dense个后转换为位图，删除和查询结果不变
+     */
+    private void verifyChunkConversion(SeckillBuyers buyers) {
+        String orderKey = "bench:buyers:convert";
+        int dense = Integer.parseInt(buyers.getDense());
+        String chunkKey = buyers.keyOf(orderKey, 1L);
+        stringRedisTemplate.delete(chunkKey);
+        try {
+            for (long id = 1; id < dense; id++) {
+                assertTrue(buyers.add(orderKey, id));
+            }
+            assertEquals(DataType.SET, stringRedisTemplate.type(chunkKey));
+            assertFalse(buyers.add(orderKey, 1L));
+            assertTrue(buyers.add(orderKey, (long) dense));
+            assertEquals(DataType.STRING, stringRedisTemplate.type(chunkKey));
+            assertFalse(buyers.add(orderKey, (long) dense));
+            buyers.remove(orderKey, 1L);
+            assertFalse(buyers.contains(orderKey, 1L));
+            assertTrue(buyers.contains(orderKey, 2L));
+            assertEquals(dense - 1, buyers.count(Arrays.asList(orderKey, chunkKey)));
+        } finally {
+            stringRedisTemplate.delete(chunkKey);
+        }
+    }
+
+    /**
+     * 删除库存、时间窗口和购买记录；集群不支持跨节点SCAN，购买记录的key按用户id计算
+     */
+    private void cleanUp(long voucherId, int shards, long users) {
+        Set<String> keys = new LinkedHashSet<>(seckillStockShards.keysOf(voucherId, shards));
+        for (int i = 0; i < shards; i++) {
+            String orderKey = SeckillStockShards.orderKey(voucherId, i);
+            keys.add(orderKey);
+            for (long userId = 1; userId <= users; userId++) {
+                keys.add(seckillBuyers.keyOf(orderKey, userId));
+            }
+        }
+        stringRedisTemplate.delete(keys);
+    }
+}
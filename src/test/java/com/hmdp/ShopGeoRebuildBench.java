@@ -0,0 +1,100 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.AbstractWrapper;
+import com.baomidou.mybatisplus.core.conditions.Wrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * 商铺GEO集合全量重建的基准测试：按id分批读取、按类型多成员GEOADD写入临时集合、RENAME替换
+ * tb_shop由mock的ShopMapper代替，按id生成商铺，不需要在数据库中写入大量数据；Redis使用application.yaml中的配置
+ * 商铺类型使用不存在的类型id，只会重建这些类型的集合，结束后删除
+ * 运行：mvn test -Dtest=ShopGeoRebuildBench -Dhmdp.bench=true -Dhmdp.bench.shops=1000000
+ */
+@Slf4j
+@Tag("bench")
+@EnabledIfSystemProperty(named = "hmdp.bench", matches = "true")
+@SpringBootTest
+class ShopGeoRebuildBench {
+    //基准测试使用的类型id，不会和真实的类型冲突
+    private static final long BENCH_TYPE_ID = 900_000_000L;
+    private static final int TYPES = 10;
+
+    @MockBean
+    private ShopMapper shopMapper;
+    @Autowired
+    private IShopService shopService;
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void rebuildShopGeo() {
+        long count = Long.getLong("hmdp.bench.shops", 1_000_000L);
+        List<Object> typeIds = new ArrayList<>(TYPES);
+        for (int i = 0; i < TYPES; i++) {
+            typeIds.add(BENCH_TYPE_ID + i);
+        }
+        when(shopMapper.selectObjs(any())).thenReturn(typeIds);
+        //按查询条件中的id游标返回下一页，补写重建期间修改的商铺时返回空列表
+        when(shopMapper.selectList(any())).thenAnswer(invocation -> {
+            Wrapper<Shop> wrapper = invocation.getArgument(0);
+            if (wrapper.getSqlSegment().contains("update_time")) {
+                return Collections.emptyList();
+            }
+            Map<String, Object> params = ((AbstractWrapper<?, ?, ?>) wrapper).getParamNameValuePairs();
+            long lastId = ((Number) params.values().iterator().next()).longValue();
+            int limit = Integer.parseInt(wrapper.getSqlSegment().replaceAll(".*LIMIT\\s+(\\d+).*", "$1"));
+            List<Shop> shops = new ArrayList<>(limit);
+            for (long id = lastId + 1; id <= Math.min(count, lastId + limit); id++) {
+                shops.add(shopOf(id));
+            }
+            return shops;
+        });
+        try {
+            Map<String, Object> result = shopService.rebuildShopGeo();
+            log.info("{}个商铺，{}个类型，重建GEO集合：{}", count, TYPES, result);
+            long members = 0;
+            for (Object typeId : typeIds) {
+                Long size = stringRedisTemplate.opsForZSet().zCard(RedisConstants.SHOP_GEO_KEY + typeId);
+                members += size == null ? 0 : size;
+            }
+            assertEquals(count, result.get("rows"));
+            assertEquals(count, members);
+        } finally {
+            List<String> keys = new ArrayList<>(TYPES * 2);
+            for (Object typeId : typeIds) {
+                keys.add(RedisConstants.SHOP_GEO_KEY + typeId);
+                keys.add(RedisConstants.SHOP_GEO_KEY + typeId + RedisConstants.SHOP_GEO_REBUILD_SUFFIX);
+            }
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    /**
+     * 按id生成商铺，坐标分布在杭州附近约20km的范围内
+     */
+    private static Shop shopOf(long id) {
+        double x = 120.05 + (id * 7919 % 100000) / 500000.0;
+        double y = 30.15 + (id * 104729 % 100000) / 500000.0;
+        return new Shop().setId(id).setTypeId(BENCH_TYPE_ID + id % TYPES).setX(x).setY(y);
+    }
+}
@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 商铺名称倒排索引的基准测试，不需要Redis和数据库
+ * 生成随机中文名称，和暴力扫描的结果对比，再统计2~4个字和单个字查询的延迟
+ * 运行：mvn test -Dtest=ShopNameIndexBench -Dhmdp.bench=true -Dhmdp.bench.shops=1000000
+ */
+@Slf4j
+@Tag("bench")
+@EnabledIfSystemProperty(named = "hmdp.bench", matches = "true")
+class ShopNameIndexBench {
+    private static final String CHARS = "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会可主发年动同工也能下过子说产种面而方后多定行学法所民"
+            + "得经十三之进着等部度家电力里如水化高自二理起小物现实加量都两体制机当使点从业本去把性好应开它合还因由其些然前外天政四日那社义事平形相全表间样与关各重新线内数正"
+            + "心反你明看原又么利比或但质气第向道命此变条只没结解问意建月公无系军很情者最立代想已通并提直题党程展五果料象员革位入常文总次品式活设及管特件长求老头基资边流路级少"
+            + "图山统接知较将组见计别她手角期根论运农指几九区强放决西被干做必战先回则任取据处队南给色光门即保治北造百规热领七海口东导器压志世金增争济阶油思术极交受联什认六共权"
+            + "收证改清己美再采转更单风切打白教速花带安场身车例真务具万每目至达走积示议声报斗完类八离华名确才科张信马节话米整空元况今集温传土许步群广石记需段研界拉林律叫且究观"
+            + "越织装影算低持音众书布复容儿须际商非验连断深难近矿千周委素技备半办青省列习响约支般史感劳便团往酸历市克何除消构府称太准精值号率族维划选标写存候毛亲快效斯院查江型"
+            + "眼王按格养易置派层片始却专状育厂京识适属圆包住调满县局照参红细引听该铁价严火锅烧烤咖啡奶茶";
+    private static final String[] AREAS = {"大关", "拱宸桥", "运河上街", "北城天地", "西湖", "滨江", "萧山", "余杭", "上城", "下城"};
+
+    @Test
+    void searchMatchesBruteForceAndLatency() {
+        int count = Integer.getInteger("hmdp.bench.shops", 1_000_000);
+        Random random = new Random(1);
+        ShopNameIndex index = new ShopNameIndex(mock(StringRedisTemplate.class), null, false, 1000);
+        List<Shop> shops = new ArrayList<>(count);
+        long begin = System.currentTimeMillis();
+        List<Shop> batch = new ArrayList<>(1000);
+        for (long id = 1; id <= count; id++) {
+            Shop shop = randomShop(random, id);
+            shops.add(shop);
+            batch.add(shop);
+            if (batch.size() == 1000) {
+                index.putAllLocal(batch);
+                batch = new ArrayList<>(1000);
+            }
+        }
+        index.putAllLocal(batch);
+        log.info("构建{}个商铺的索引耗时{}ms", count, System.currentTimeMillis() - begin);
+
+        //修改和删除一部分商铺，覆盖墓碑和压缩
+        for (int i = 0; i < count / 50; i++) {
+            Shop shop = shops.get(random.nextInt(count));
+            if (shop.getName() != null) {
+                shop.setName(shop.getName() + "店");
+                index.putAllLocal(Collections.singletonList(shop));
+            }
+        }
+        for (int i = 0; i < count / 1000; i++) {
+            Shop shop = shops.get(random.nextInt(count));
+            if (shop.getName() != null) {
+                index.remove(shop.getId());
+                shop.setName(null);
+            }
+        }
+
+        //前5页的结果和暴力扫描一致
+        for (String query : new String[]{"火锅", "大关", "的一", "锅", "店", "烧烤咖", "拱宸", "xyz"}) {
+            List<Long> expected = bruteForce(shops, query);
+            for (int page = 0; page < 5; page++) {
+                int from = Math.min(page * 10, expected.size());
+                assertEquals(expected.subList(from, Math.min(from + 10, expected.size())),
+                        index.search(query, page * 10, 10), "query=" + query + ", page=" + page);
+            }
+        }
+
+        //2~4个字的查询，先预热一轮
+        LatencyRecorder multi = new LatencyRecorder(100000);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 20000; i++) {
+                String name = shops.get(random.nextInt(count)).getName();
+                if (name == null || name.length() < 3) {
+                    continue;
+                }
+                int start = random.nextInt(name.length() - 1);
+                int length = 2 + random.nextInt(Math.min(3, name.length() - start - 1));
+                String query = name.substring(start, Math.min(name.length(), start + length));
+                long t = System.nanoTime();
+                index.search(query, 0, 10);
+                if (round == 1) {
+                    multi.record(System.nanoTime() - t);
+                }
+            }
+        }
+        //单个字的查询，命中的商铺最多
+        LatencyRecorder single = new LatencyRecorder(100000);
+        for (int i = 0; i < 5000; i++) {
+            String query = String.valueOf(CHARS.charAt(random.nextInt(CHARS.length())));
+            long t = System.nanoTime();
+            index.search(query, 0, 10);
+            single.record(System.nanoTime() - t);
+        }
+        log.info("{}", multi.getStats("search.2to4chars"));
+        log.info("{}", single.getStats("search.1char"));
+        log.info("{}", index.getStats());
+    }
+
+    private static Shop randomShop(Random random, long id) {
+        StringBuilder name = new StringBuilder();
+        int length = 3 + random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            name.append(CHARS.charAt(random.nextInt(CHARS.length())));
+        }
+        if (random.nextInt(20) == 0) {
+            name.append("火锅");
+        }
+        return new Shop().setId(id).setName(name.toString()).setArea(AREAS[random.nextInt(AREAS.length)])
+                .setAddress("").setScore(random.nextInt(50)).setSold(random.nextInt(10000));
+    }
+
+    /**
+     * 按ShopNameIndex的相关度规则逐个扫描：名称包含100，名称前缀50，名称相同50，地区包含20；
+     * 相关度相同时依次按评分、销量从高到低，id从小到大
+     */
+    private static List<Long> bruteForce(List<Shop> shops, String query) {
+        List<long[]> matches = new ArrayList<>();
+        for (Shop shop : shops) {
+            if (shop.getName() == null) {
+                continue;
+            }
+            String name = ShopNameIndex.normalize(shop.getName());
+            int relevance = 0;
+            if (name.contains(query)) {
+                relevance += 100;
+                if (name.startsWith(query)) {
+                    relevance += 50;
+                }
+                if (name.equals(query)) {
+                    relevance += 50;
+                }
+            }
+            if (ShopNameIndex.normalize(shop.getArea()).contains(query)) {
+                relevance += 20;
+            }
+            if (relevance > 0) {
+                matches.add(new long[]{relevance, shop.getScore(), shop.getSold(), shop.getId()});
+            }
+        }
+        matches.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0])
+                : a[1] != b[1] ? Long.compare(b[1], a[1])
+                : a[2] != b[2] ? Long.compare(b[2], a[2])
+                : Long.compare(a[3], b[3]));
+        List<Long> ids = new ArrayList<>(Math.min(50, matches.size()));
+        for (int i = 0; i < Math.min(50, matches.size()); i++) {
+            ids.add(matches.get(i)[3]);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 商铺名称前缀补全的基准测试，不需要Redis和数据库
+ * 生成随机名称(三分之一带常见品牌前缀)，和暴力前缀扫描的结果对比，再统计构建耗时、内存和查询延迟
+ * 运行：mvn test -Dtest=ShopNameSuggesterBench -Dhmdp.bench=true -Dhmdp.bench.shops=1000000
+ */
+@Slf4j
+@Tag("bench")
+@EnabledIfSystemProperty(named = "hmdp.bench", matches = "true")
+class ShopNameSuggesterBench {
+    private static final String CHARS = "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会可主发年动同工也能下过子说产种面而方后多定行学法所民火锅烧烤咖啡奶茶";
+    private static final String[] BRANDS = {"海底捞", "星巴克", "肯德基", "麦当劳", "小龙坎", "喜茶", "茶颜悦色", "开乐迪", "乐乐茶"};
+    private static final int TOP_K = 10;
+    private static final int SCORE_WEIGHT = 100;
+
+    @Test
+    void suggestMatchesBruteForceAndLatency() {
+        int count = Integer.getInteger("hmdp.bench.shops", 1_000_000);
+        Random random = new Random(2);
+        List<Shop> shops = new ArrayList<>(count);
+        for (long id = 1; id <= count; id++) {
+            StringBuilder name = new StringBuilder();
+            if (random.nextInt(3) == 0) {
+                name.append(BRANDS[random.nextInt(BRANDS.length)]);
+            }
+            int length = 1 + random.nextInt(7);
+            for (int i = 0; i < length; i++) {
+                name.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            }
+            shops.add(new Shop().setId(id).setName(name.toString())
+                    .setScore(random.nextInt(50)).setSold(random.nextInt(100000)));
+        }
+        //一页返回全部商铺，重建只查询一次
+        ShopMapper shopMapper = mock(ShopMapper.class);
+        when(shopMapper.selectList(any())).thenReturn(shops);
+        ShopNameSuggester suggester = new ShopNameSuggester(shopMapper, TOP_K, SCORE_WEIGHT, 300, count + 1);
+        suggester.rebuild();
+        log.info("{}", suggester.getStats());
+
+        //同名商铺保留权重最大的，权重相同时保留id小的
+        Map<String, Shop> best = new HashMap<>();
+        for (Shop shop : shops) {
+            String key = ShopNameIndex.normalize(shop.getName());
+            Shop old = best.get(key);
+            if (old == null || weightOf(old) < weightOf(shop)) {
+                best.put(key, shop);
+            }
+        }
+        List<String> keys = new ArrayList<>(best.keySet());
+        List<String> prefixes = new ArrayList<>();
+        for (String brand : BRANDS) {
+            prefixes.add(brand.substring(0, 1));
+            prefixes.add(brand);
+        }
+        prefixes.add("的一");
+        prefixes.add("zz");
+        for (int i = 0; i < 200; i++) {
+            String key = keys.get(random.nextInt(keys.size()));
+            prefixes.add(key.substring(0, 1 + random.nextInt(key.length())));
+        }
+        for (String prefix : prefixes) {
+            List<String> matched = new ArrayList<>();
+            for (String key : keys) {
+                if (key.startsWith(prefix)) {
+                    matched.add(key);
+                }
+            }
+            matched.sort((a, b) -> {
+                long wa = weightOf(best.get(a));
+                long wb = weightOf(best.get(b));
+                return wa != wb ? Long.compare(wb, wa) : a.compareTo(b);
+            });
+            List<String> expected = new ArrayList<>(TOP_K);
+            for (int i = 0; i < Math.min(TOP_K, matched.size()); i++) {
+                expected.add(best.get(matched.get(i)).getName());
+            }
+            assertEquals(expected, suggester.suggest(prefix, TOP_K), "prefix=" + prefix);
+        }
+
+        //1~4个字的前缀，先预热一轮
+        LatencyRecorder latency = new LatencyRecorder(200000);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 100000; i++) {
+                String key = keys.get(random.nextInt(keys.size()));
+                String prefix = key.substring(0, 1 + random.nextInt(Math.min(4, key.length())));
+                long t = System.nanoTime();
+                suggester.suggest(prefix, TOP_K);
+                if (round == 1) {
+                    latency.record(System.nanoTime() - t);
+                }
+            }
+        }
+        log.info("{}", latency.getStats("suggest.latency"));
+    }
+
+    private static long weightOf(Shop shop) {
+        return shop.getSold() + (long) shop.getScore() * SCORE_WEIGHT;
+    }
+}